@@ -0,0 +1,196 @@
+package com.example.cocoonshu.imagedream;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+
+import com.cobox.coview.SlidingImage;
+import com.cobox.coview.SlidingImage.LinearBitmapDrawer;
+import com.cobox.coview.SlidingImage.RadialBitmapDrawer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Benchmark of the transition masks drawn live at full resolution against
+ * the cached masks drawn at {@link SlidingImage#setMaskScale(float)}, with a
+ * check that the upscaled masks stay within a visual tolerance.
+ * <p>
+ * Drawers composite an opaque white image into a transparent target, so the
+ * alpha of the target is the mask. Run it on a device or emulator, it needs
+ * a software canvas that really rasterizes.
+ */
+public class MaskBenchmark {
+    public static final String TAG = "MaskBenchmark";
+
+    public static class Config {
+        public int   width           = 1080;
+        public int   height          = 1920;
+        public float maskScale       = 0.25f;
+        public int   frames          = 60;
+        public int   warmupFrames    = 10;
+        /** Largest alpha difference allowed on any pixel, out of 255 */
+        public int   maxAlphaDiff    = 16;
+        /** Largest mean alpha difference allowed over a frame, out of 255 */
+        public float meanAlphaDiff   = 1.0f;
+    }
+
+    public static class Result {
+        public String drawer          = null;
+        public double fullFrameMillis = 0;
+        public double maskFrameMillis = 0;
+        public int    maxAlphaDiff    = 0;
+        public double meanAlphaDiff   = 0;
+
+        public double getSpeedup() {
+            return maskFrameMillis > 0 ? fullFrameMillis / maskFrameMillis : 0;
+        }
+
+        @Override
+        public String toString() {
+            return drawer
+                    + ": full " + String.format("%.3f", fullFrameMillis) + "ms/frame"
+                    + ", mask " + String.format("%.3f", maskFrameMillis) + "ms/frame"
+                    + ", speedup " + String.format("%.2f", getSpeedup()) + "x"
+                    + ", alpha diff max/mean " + maxAlphaDiff + "/" + String.format("%.2f", meanAlphaDiff);
+        }
+    }
+
+    private final Config mConfig;
+
+    public MaskBenchmark(Config config) {
+        mConfig = config == null ? new Config() : config;
+    }
+
+    /**
+     * Run once and fail if any cached mask drifted beyond the tolerance
+     */
+    public List<Result> runAndCheck() {
+        List<Result> results    = run();
+        List<String> violations = new ArrayList<>();
+        for (Result result : results) {
+            if (result.maxAlphaDiff > mConfig.maxAlphaDiff
+                    || result.meanAlphaDiff > mConfig.meanAlphaDiff) {
+                violations.add(result.toString());
+            }
+        }
+        if (!violations.isEmpty()) {
+            throw new AssertionError(TAG + " mask out of tolerance: " + violations);
+        }
+        return results;
+    }
+
+    public List<Result> run() {
+        Config config = mConfig;
+        Bitmap image  = Bitmap.createBitmap(config.width, config.height, Bitmap.Config.ARGB_8888);
+        Bitmap full   = Bitmap.createBitmap(config.width, config.height, Bitmap.Config.ARGB_8888);
+        Bitmap masked = Bitmap.createBitmap(config.width, config.height, Bitmap.Config.ARGB_8888);
+        image.eraseColor(0xFFFFFFFF);
+
+        List<Result> results = new ArrayList<>();
+        try {
+            results.add(measure("Radial",
+                    new RadialProbe(image, 1.0f), new RadialProbe(image, config.maskScale), full, masked));
+            results.add(measure("LinearHorizontal",
+                    new LinearProbe(image, LinearBitmapDrawer.HORIZONTAL, 1.0f),
+                    new LinearProbe(image, LinearBitmapDrawer.HORIZONTAL, config.maskScale), full, masked));
+            results.add(measure("LinearVertical",
+                    new LinearProbe(image, LinearBitmapDrawer.VERTICAL, 1.0f),
+                    new LinearProbe(image, LinearBitmapDrawer.VERTICAL, config.maskScale), full, masked));
+        } finally {
+            image.recycle();
+            full.recycle();
+            masked.recycle();
+        }
+        return results;
+    }
+
+    private Result measure(String name, Probe fullProbe, Probe maskProbe, Bitmap full, Bitmap masked) {
+        Config config = mConfig;
+        Canvas canvas = new Canvas();
+        Result result = new Result();
+        result.drawer = name;
+
+        canvas.setBitmap(full);
+        result.fullFrameMillis = time(fullProbe, canvas, full);
+        canvas.setBitmap(masked);
+        result.maskFrameMillis = time(maskProbe, canvas, masked);
+
+        int[] fullRow    = new int[config.width];
+        int[] maskedRow  = new int[config.width];
+        long  diffSum    = 0;
+        long  pixelCount = 0;
+        for (int frame = 0; frame <= config.frames; frame++) {
+            float progress = (float) frame / (float) config.frames;
+            canvas.setBitmap(full);
+            render(fullProbe, canvas, full, progress);
+            canvas.setBitmap(masked);
+            render(maskProbe, canvas, masked, progress);
+
+            for (int y = 0; y < config.height; y++) {
+                full.getPixels(fullRow, 0, config.width, 0, y, config.width, 1);
+                masked.getPixels(maskedRow, 0, config.width, 0, y, config.width, 1);
+                for (int x = 0; x < config.width; x++) {
+                    int diff = Math.abs((fullRow[x] >>> 24) - (maskedRow[x] >>> 24));
+                    result.maxAlphaDiff = diff > result.maxAlphaDiff ? diff : result.maxAlphaDiff;
+                    diffSum += diff;
+                }
+            }
+            pixelCount += (long) config.width * config.height;
+        }
+        result.meanAlphaDiff = pixelCount > 0 ? (double) diffSum / pixelCount : 0;
+        return result;
+    }
+
+    private double time(Probe probe, Canvas canvas, Bitmap target) {
+        Config config = mConfig;
+        for (int frame = 0; frame < config.warmupFrames; frame++) {
+            render(probe, canvas, target, (float) frame / (float) config.warmupFrames);
+        }
+
+        long startTime = System.nanoTime();
+        for (int frame = 0; frame <= config.frames; frame++) {
+            render(probe, canvas, target, (float) frame / (float) config.frames);
+        }
+        return (System.nanoTime() - startTime) / 1e6 / (config.frames + 1);
+    }
+
+    private void render(Probe probe, Canvas canvas, Bitmap target, float progress) {
+        target.eraseColor(0x00000000);
+        probe.render(canvas, progress, mConfig.width, mConfig.height);
+    }
+
+    /**
+     * Drawers at a fixed progress, without the animation clock
+     */
+    private interface Probe {
+        void render(Canvas canvas, float progress, int width, int height);
+    }
+
+    private static class RadialProbe extends RadialBitmapDrawer implements Probe {
+
+        RadialProbe(Bitmap bitmap, float maskScale) {
+            super(bitmap);
+            setMaskScale(maskScale);
+        }
+
+        @Override
+        public void render(Canvas canvas, float progress, int width, int height) {
+            setBound(0, 0, width, height);
+            onDraw(canvas, progress);
+        }
+    }
+
+    private static class LinearProbe extends LinearBitmapDrawer implements Probe {
+
+        LinearProbe(Bitmap bitmap, int direction, float maskScale) {
+            super(bitmap, direction);
+            setMaskScale(maskScale);
+        }
+
+        @Override
+        public void render(Canvas canvas, float progress, int width, int height) {
+            setBound(0, 0, width, height);
+            onDraw(canvas, progress);
+        }
+    }
+}
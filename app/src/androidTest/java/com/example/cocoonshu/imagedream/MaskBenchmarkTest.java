@@ -0,0 +1,21 @@
+package com.example.cocoonshu.imagedream;
+
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Runs {@link MaskBenchmark} on the device rasterizer, the timings go to logcat
+ */
+@RunWith(AndroidJUnit4.class)
+public class MaskBenchmarkTest {
+
+    @Test
+    public void cachedMasksStayWithinTolerance() {
+        for (MaskBenchmark.Result result : new MaskBenchmark(null).runAndCheck()) {
+            Log.i(MaskBenchmark.TAG, result.toString());
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package com.example.cocoonshu.imagedream;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.LinearGradient;
+import android.graphics.Paint;
+import android.graphics.Shader;
+
+import com.cobox.coview.SlidingImage;
+import com.cobox.coview.SlidingImage.RadialBitmapDrawer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Benchmark of the radial transition drawn live against the same transition
+ * drawn from the reveal map pre-rendered at {@link SlidingImage#setPrerender},
+ * with a check that the thresholded map stays close to the live frames.
+ * Linear transitions are always drawn live, so there is nothing to compare.
+ * <p>
+ * Drawers composite a smooth colour ramp into a transparent target, every
+ * channel of which is compared. Run it on a device or emulator, it needs a
+ * software canvas that really rasterizes.
+ */
+public class PrerenderBenchmark {
+    public static final String TAG = "PrerenderBenchmark";
+
+    public static class Config {
+        public int   width          = 1080;
+        public int   height         = 1920;
+        public float maskScale      = 0.25f;
+        public int   frames         = 60;
+        public int   warmupFrames   = 10;
+        /** Largest mean channel difference allowed over a frame, out of 255 */
+        public float meanDiff       = 2.0f;
+        /** Channel difference, out of 255, above which a pixel is off */
+        public int   offDiff        = 32;
+        /** Largest share of pixels allowed off over a frame */
+        public float offPixelShare  = 0.02f;
+    }
+
+    public static class Result {
+        public String drawer              = null;
+        public double liveFrameMillis     = 0;
+        public double revealFrameMillis   = 0;
+        public double prerenderMillis     = 0;
+        public double meanDiff            = 0;
+        public double offPixelShare       = 0;
+
+        public double getSpeedup() {
+            return revealFrameMillis > 0 ? liveFrameMillis / revealFrameMillis : 0;
+        }
+
+        @Override
+        public String toString() {
+            return drawer
+                    + ": live " + String.format("%.3f", liveFrameMillis) + "ms/frame"
+                    + ", reveal map " + String.format("%.3f", revealFrameMillis) + "ms/frame"
+                    + " after " + String.format("%.1f", prerenderMillis) + "ms pre-rendering"
+                    + ", speedup " + String.format("%.2f", getSpeedup()) + "x"
+                    + ", mean diff " + String.format("%.2f", meanDiff)
+                    + ", off pixels " + String.format("%.2f", offPixelShare * 100) + "%";
+        }
+    }
+
+    private final Config mConfig;
+
+    public PrerenderBenchmark(Config config) {
+        mConfig = config == null ? new Config() : config;
+    }
+
+    /**
+     * Run once and fail if the reveal map drifted beyond the tolerance
+     */
+    public List<Result> runAndCheck() {
+        List<Result> results    = run();
+        List<String> violations = new ArrayList<>();
+        for (Result result : results) {
+            if (result.meanDiff > mConfig.meanDiff
+                    || result.offPixelShare > mConfig.offPixelShare) {
+                violations.add(result.toString());
+            }
+        }
+        if (!violations.isEmpty()) {
+            throw new AssertionError(TAG + " reveal map out of tolerance: " + violations);
+        }
+        return results;
+    }
+
+    public List<Result> run() {
+        Config config    = mConfig;
+        Bitmap image     = Bitmap.createBitmap(config.width, config.height, Bitmap.Config.ARGB_8888);
+        Bitmap live      = Bitmap.createBitmap(config.width, config.height, Bitmap.Config.ARGB_8888);
+        Bitmap revealed  = Bitmap.createBitmap(config.width, config.height, Bitmap.Config.ARGB_8888);
+        Paint  paint     = new Paint();
+        paint.setShader(new LinearGradient(0, 0, config.width, config.height,
+                new int[] {0xFF204080, 0xFFE0C040, 0xFF40A060}, null, Shader.TileMode.CLAMP));
+        new Canvas(image).drawRect(0, 0, config.width, config.height, paint);
+
+        List<Result> results = new ArrayList<>();
+        try {
+            results.add(measure("Radial",
+                    new RadialProbe(image, config.maskScale), new RadialProbe(image, config.maskScale), live, revealed));
+        } finally {
+            image.recycle();
+            live.recycle();
+            revealed.recycle();
+        }
+        return results;
+    }
+
+    private Result measure(String name, Probe liveProbe, Probe revealProbe, Bitmap live, Bitmap revealed) {
+        Config config = mConfig;
+        Canvas canvas = new Canvas();
+        Result result = new Result();
+        result.drawer = name;
+
+        long startTime = System.nanoTime();
+        if (!revealProbe.prerenderFor(config.width, config.height)) {
+            throw new AssertionError(TAG + " " + name + " reveal map didn't fit in memory");
+        }
+        result.prerenderMillis = (System.nanoTime() - startTime) / 1e6;
+
+        canvas.setBitmap(live);
+        result.liveFrameMillis = time(liveProbe, canvas, live);
+        canvas.setBitmap(revealed);
+        result.revealFrameMillis = time(revealProbe, canvas, revealed);
+
+        int[] liveRow      = new int[config.width];
+        int[] revealedRow  = new int[config.width];
+        long  diffSum      = 0;
+        long  offCount     = 0;
+        long  pixelCount   = 0;
+        for (int frame = 0; frame <= config.frames; frame++) {
+            float progress = (float) frame / (float) config.frames;
+            canvas.setBitmap(live);
+            render(liveProbe, canvas, live, progress);
+            canvas.setBitmap(revealed);
+            render(revealProbe, canvas, revealed, progress);
+
+            for (int y = 0; y < config.height; y++) {
+                live.getPixels(liveRow, 0, config.width, 0, y, config.width, 1);
+                revealed.getPixels(revealedRow, 0, config.width, 0, y, config.width, 1);
+                for (int x = 0; x < config.width; x++) {
+                    int diff = getChannelDiff(liveRow[x], revealedRow[x]);
+                    diffSum  += diff;
+                    offCount += diff > config.offDiff ? 1 : 0;
+                }
+            }
+            pixelCount += (long) config.width * config.height;
+        }
+        result.meanDiff      = pixelCount > 0 ? (double) diffSum / pixelCount : 0;
+        result.offPixelShare = pixelCount > 0 ? (double) offCount / pixelCount : 0;
+        return result;
+    }
+
+    /**
+     * Largest difference between two colours over their four channels
+     */
+    private static int getChannelDiff(int color0, int color1) {
+        int diff = 0;
+        for (int shift = 0; shift < 32; shift += 8) {
+            int channelDiff = Math.abs(((color0 >>> shift) & 0xFF) - ((color1 >>> shift) & 0xFF));
+            diff = channelDiff > diff ? channelDiff : diff;
+        }
+        return diff;
+    }
+
+    private double time(Probe probe, Canvas canvas, Bitmap target) {
+        Config config = mConfig;
+        for (int frame = 0; frame < config.warmupFrames; frame++) {
+            render(probe, canvas, target, (float) frame / (float) config.warmupFrames);
+        }
+
+        long startTime = System.nanoTime();
+        for (int frame = 0; frame <= config.frames; frame++) {
+            render(probe, canvas, target, (float) frame / (float) config.frames);
+        }
+        return (System.nanoTime() - startTime) / 1e6 / (config.frames + 1);
+    }
+
+    private void render(Probe probe, Canvas canvas, Bitmap target, float progress) {
+        target.eraseColor(0x00000000);
+        probe.render(canvas, progress, mConfig.width, mConfig.height);
+    }
+
+    /**
+     * Drawers at a fixed progress, without the animation clock
+     */
+    private interface Probe {
+        boolean prerenderFor(int width, int height);
+        void render(Canvas canvas, float progress, int width, int height);
+    }
+
+    private static class RadialProbe extends RadialBitmapDrawer implements Probe {
+
+        RadialProbe(Bitmap bitmap, float maskScale) {
+            super(bitmap);
+            setMaskScale(maskScale);
+        }
+
+        @Override
+        public boolean prerenderFor(int width, int height) {
+            return prerender(width, height);
+        }
+
+        @Override
+        public void render(Canvas canvas, float progress, int width, int height) {
+            setBound(0, 0, width, height);
+            onDraw(canvas, progress);
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package com.example.cocoonshu.imagedream;
+
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Runs {@link PrerenderBenchmark} on the device rasterizer, the timings go to logcat
+ */
+@RunWith(AndroidJUnit4.class)
+public class PrerenderBenchmarkTest {
+
+    @Test
+    public void revealMapStaysCloseToLiveTransition() {
+        for (PrerenderBenchmark.Result result : new PrerenderBenchmark(null).runAndCheck()) {
+            Log.i(PrerenderBenchmark.TAG, result.toString());
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package com.cobox.coview;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapFactory.Options;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Decoder resources owned by one decode worker and reused across decodes:
+ * the {@link Options}, the native temp storage and the decode rect. Region
+ * decoders opened through a file descriptor are kept in a {@link SourcePool}
+ * shared by the workers, so the current slide, the upcoming window and a
+ * refresh after a resize find their file open whichever worker decodes them.
+ * Not thread safe, every worker keeps its own.
+ */
+class DecodeContext implements DecodeService.Decoder {
+    public static final String TAG = "DecodeContext";
+
+    private static final int TEMP_STORAGE_SIZE  = 16 * 1024;
+    private static final int MAX_OPENED_SOURCES = 4;
+
+    private final Options    mOptions     = new Options();
+    private final byte[]     mTempStorage = new byte[TEMP_STORAGE_SIZE];
+    private final Rect       mDecodeRect  = new Rect();
+    private final SourcePool mSourcePool;
+
+    /**
+     * LRU of the sources opened lately, shared by the workers. A worker takes
+     * a source out while it decodes, so no other worker can close it under it,
+     * and puts it back afterwards. Large enough for the current slide and the
+     * upcoming window, older files are closed.
+     */
+    static final class SourcePool {
+        private final LinkedHashMap<String, Source> mSources = new LinkedHashMap<String, Source>(MAX_OPENED_SOURCES, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Source> eldest) {
+                if (size() > MAX_OPENED_SOURCES) {
+                    eldest.getValue().close();
+                    return true;
+                }
+                return false;
+            }
+        };
+
+        /**
+         * @return the open source of the path, or null if none is available
+         */
+        synchronized Source take(String path) {
+            return mSources.remove(path);
+        }
+
+        synchronized void put(String path, Source source) {
+            if (mSources.containsKey(path)) {
+                // Opened twice by workers decoding two sizes at once
+                source.close();
+                return;
+            }
+            mSources.put(path, source);
+        }
+
+        synchronized void closeAll() {
+            Iterator<Source> iterator = mSources.values().iterator();
+            while (iterator.hasNext()) {
+                iterator.next().close();
+                iterator.remove();
+            }
+        }
+    }
+
+    DecodeContext(SourcePool sourcePool) {
+        mSourcePool = sourcePool == null ? new SourcePool() : sourcePool;
+    }
+
+    /**
+     * An image file kept open with its region decoder
+     */
+    private static final class Source {
+        final File                file;
+        final long                length;
+        final long                lastModified;
+        final FileInputStream     stream;
+        final BitmapRegionDecoder decoder;
+
+        Source(File file, FileInputStream stream, BitmapRegionDecoder decoder) {
+            this.file         = file;
+            this.length       = file.length();
+            this.lastModified = file.lastModified();
+            this.stream       = stream;
+            this.decoder      = decoder;
+        }
+
+        boolean isValid() {
+            return !decoder.isRecycled()
+                    && file.length() == length
+                    && file.lastModified() == lastModified;
+        }
+
+        void close() {
+            decoder.recycle();
+            try {
+                stream.close();
+            } catch (IOException e) {
+                // Nothing left to release
+            }
+        }
+    }
+
+    @Override
+    public Bitmap decode(DecodeService.Key key) {
+        resetOptions();
+        if (key.width == 0 || key.height == 0) {
+            return decodeFile(key.path);
+        }
+
+        Source source = obtainSource(key.path);
+        if (source == null) {
+            return null;
+        }
+        try {
+            return decodeRegion(source, key);
+        } finally {
+            mSourcePool.put(key.path, source);
+        }
+    }
+
+    private Bitmap decodeRegion(Source source, DecodeService.Key key) {
+        BitmapRegionDecoder decoder      = source.decoder;
+        Rect                decodeRect   = mDecodeRect;
+        float               bitmapWidth  = decoder.getWidth();
+        float               bitmapHeight = decoder.getHeight();
+        float               bitmapRatio  = bitmapWidth / bitmapHeight;
+        float               rectRatio    = (float) key.width / (float) key.height;
+        int                 sampleSize   = 1;
+        if (bitmapRatio > rectRatio) {
+            decodeRect.top    = 0;
+            decodeRect.bottom = (int) bitmapHeight;
+            decodeRect.left   = (int) ((bitmapWidth - (bitmapHeight / key.height) * key.width) * 0.5f);
+            decodeRect.right  = (int) ((bitmapWidth + (bitmapHeight / key.height) * key.width) * 0.5f);
+            sampleSize        = Math.round(bitmapHeight / (float) key.height);
+            sampleSize        = sampleSize < 1 ? 1 : sampleSize;
+        } else {
+            decodeRect.top    = (int) ((bitmapHeight - (bitmapWidth / key.width) * key.height) * 0.5f);
+            decodeRect.bottom = (int) ((bitmapHeight + (bitmapWidth / key.width) * key.height) * 0.5f);
+            decodeRect.left   = 0;
+            decodeRect.right  = (int) bitmapWidth;
+            sampleSize        = Math.round(bitmapWidth / (float) key.width);
+            sampleSize        = sampleSize < 1 ? 1 : sampleSize;
+        }
+        mOptions.inSampleSize = sampleSize;
+        return decoder.decodeRegion(decodeRect, mOptions);
+    }
+
+    /**
+     * Close every opened source, called when the service goes idle.
+     * Sources other workers are decoding from go back open.
+     */
+    @Override
+    public void close() {
+        mSourcePool.closeAll();
+    }
+
+    private void resetOptions() {
+        mOptions.inSampleSize       = 1;
+        mOptions.inJustDecodeBounds = false;
+        mOptions.inPreferredConfig  = Bitmap.Config.ARGB_8888;
+        mOptions.inTempStorage      = mTempStorage;
+    }
+
+    /**
+     * Take the open source of the path out of the pool, or open it.
+     * Hand it back to the pool once decoded.
+     */
+    private Source obtainSource(String path) {
+        Source source = mSourcePool.take(path);
+        if (source != null) {
+            if (source.isValid()) {
+                return source;
+            }
+            source.close();
+        }
+
+        File            file   = new File(path);
+        FileInputStream stream = null;
+        try {
+            stream = new FileInputStream(file);
+            BitmapRegionDecoder decoder = BitmapRegionDecoder.newInstance(stream.getFD(), false);
+            return new Source(file, stream, decoder);
+        } catch (IOException e) {
+            e.printStackTrace();
+            if (stream != null) {
+                try {
+                    stream.close();
+                } catch (IOException closeException) {
+                    // Nothing left to release
+                }
+            }
+            return null;
+        }
+    }
+
+    private Bitmap decodeFile(String path) {
+        FileInputStream stream = null;
+        try {
+            stream = new FileInputStream(path);
+            return BitmapFactory.decodeFileDescriptor(stream.getFD(), null, mOptions);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            if (stream != null) {
+                try {
+                    stream.close();
+                } catch (IOException e) {
+                    // Nothing left to release
+                }
+            }
+        }
+    }
+}
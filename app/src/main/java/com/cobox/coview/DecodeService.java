@@ -0,0 +1,578 @@
+package com.cobox.coview;
+
+import android.graphics.Bitmap;
+
+import com.cobox.coview.SlidingImage.Clamp;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Process-wide bitmap decode service shared by every {@link SlidingImage.BitmapLoader}.
+ * Requests for the same (path, size, clamp) are decoded once, decoded bitmaps are
+ * kept in one reference counted memory cache, and pending requests are served
+ * round-robin across the registered clients.
+ */
+public class DecodeService {
+    public static final String TAG = "DecodeService";
+
+    private static final int   MAX_WORKER_COUNT    = 2;
+    private static final float CACHE_MEMORY_FACTOR = 0.125f;
+
+    private static final AtomicInteger sNextRequestId = new AtomicInteger(1);
+
+    private static DecodeService sInstance = null;
+
+    private final Object                      mLocker       = new Object();
+    private final List<Client>                mClients      = new ArrayList<>();
+    private final Map<Client, Queue<Request>> mClientQueues = new HashMap<>();
+    private final Map<Key, List<Request>>     mInFlight     = new HashMap<>();
+    private final BitmapCache                 mCache;
+    private final Worker[]                    mWorkers;
+    private final DecoderFactory              mDecoderFactory;
+    private       int                         mNextClient   = 0;
+    private       int                         mIdleRound    = 0;
+    private       boolean                     mIsStarted    = false;
+
+    public interface Client {
+        /**
+         * Takes over one reference to {@code bitmap}, to be handed back through
+         * {@link #release(Bitmap)}. A client that throws keeps nothing, the
+         * service releases the reference itself.
+         */
+        void onDecoded(Request request, Bitmap bitmap);
+    }
+
+    /**
+     * Decodes a key to a bitmap. Each worker owns one, so it needn't be thread safe.
+     */
+    public interface Decoder {
+        Bitmap decode(Key key);
+        void close();
+    }
+
+    public interface DecoderFactory {
+        Decoder newDecoder();
+    }
+
+    private static final DecoderFactory DEFAULT_DECODER_FACTORY = new DecoderFactory() {
+        private final DecodeContext.SourcePool mSourcePool = new DecodeContext.SourcePool();
+
+        @Override
+        public Decoder newDecoder() {
+            // Workers share the opened files, a path comes back to whichever worker is free
+            return new DecodeContext(mSourcePool);
+        }
+    };
+
+    public static DecodeService getInstance() {
+        synchronized (DecodeService.class) {
+            if (sInstance == null) {
+                int cpuCount    = Runtime.getRuntime().availableProcessors();
+                int workerCount = Math.max(1, Math.min(MAX_WORKER_COUNT, cpuCount / 2));
+                sInstance = new DecodeService(workerCount, (long) (Runtime.getRuntime().maxMemory() * CACHE_MEMORY_FACTOR));
+            }
+            return sInstance;
+        }
+    }
+
+    DecodeService(int workerCount, long cacheBytes) {
+        this(workerCount, cacheBytes, DEFAULT_DECODER_FACTORY);
+    }
+
+    /**
+     * A private service, for soak runs and tests that feed their own decoder
+     */
+    public DecodeService(int workerCount, long cacheBytes, DecoderFactory factory) {
+        mCache          = new BitmapCache(cacheBytes);
+        mWorkers        = new Worker[workerCount < 1 ? 1 : workerCount];
+        mDecoderFactory = factory == null ? DEFAULT_DECODER_FACTORY : factory;
+    }
+
+    public void register(Client client) {
+        if (client == null) {
+            return;
+        }
+        synchronized (mLocker) {
+            if (!mClientQueues.containsKey(client)) {
+                mClients.add(client);
+                mClientQueues.put(client, new ArrayDeque<Request>());
+            }
+            if (!mIsStarted) {
+                for (int i = 0; i < mWorkers.length; i++) {
+                    mWorkers[i] = new Worker(i);
+                    mWorkers[i].start();
+                }
+                mIsStarted = true;
+            }
+        }
+    }
+
+    public void unregister(Client client) {
+        synchronized (mLocker) {
+            int index = mClients.indexOf(client);
+            if (index < 0) {
+                return;
+            }
+            mClients.remove(index);
+            if (mNextClient > index) {
+                mNextClient--;
+            }
+
+            for (List<Request> waiters : mInFlight.values()) {
+                Iterator<Request> iterator = waiters.iterator();
+                while (iterator.hasNext()) {
+                    Request request = iterator.next();
+                    if (request.client == client) {
+                        iterator.remove();
+                        Tracer.finish(request.id);
+                    }
+                }
+            }
+            finishAll(mClientQueues.remove(client));
+            mCache.forget(client);
+
+            if (mClients.isEmpty()) {
+                mCache.trimToSize(0);
+                mIdleRound++;
+                mLocker.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Queue a decode for {@code client}
+     * @return the request id, also used as the slide id in traces, or 0 if not queued
+     */
+    public int enqueue(Client client, Key key, int flags) {
+        if (key == null) {
+            return 0;
+        }
+        synchronized (mLocker) {
+            Queue<Request> queue = mClientQueues.get(client);
+            if (queue == null) {
+                return 0;
+            }
+            Request request = new Request(sNextRequestId.getAndIncrement(), client, key, flags);
+            queue.offer(request);
+            Tracer.advance(request.id, Tracer.Stage.Queued);
+            mLocker.notifyAll();
+            return request.id;
+        }
+    }
+
+    private static void finishAll(Queue<Request> queue) {
+        if (queue == null || !Tracer.isEnabled()) {
+            return;
+        }
+        for (Request request : queue) {
+            Tracer.finish(request.id);
+        }
+    }
+
+    /**
+     * Move every pending request of {@code client} to the new target size,
+     * so nothing still waiting in its queue is decoded at a stale size.
+     */
+    public void resize(Client client, int width, int height) {
+        synchronized (mLocker) {
+            Queue<Request> queue = mClientQueues.get(client);
+            if (queue == null || queue.isEmpty()) {
+                return;
+            }
+            int pendingCount = queue.size();
+            for (int i = 0; i < pendingCount; i++) {
+                Request request = queue.poll();
+                Key     key     = request.key;
+                queue.offer(new Request(request.id, client, new Key(key.path, width, height, key.clamp), request.flags));
+            }
+        }
+    }
+
+    /**
+     * Drop cache entries decoded at the given size that no client other than
+     * {@code client} asked for. Entries still on screen are dropped once
+     * released, unless asked for again first. Entries another view decoded
+     * or prefetched at that size are left to the LRU.
+     */
+    public void evict(Client client, int width, int height) {
+        synchronized (mLocker) {
+            mCache.evict(client, width, height);
+        }
+    }
+
+    /**
+     * Number of cached bitmaps still referenced by a client
+     */
+    public int getReferencedCount() {
+        synchronized (mLocker) {
+            return mCache.getReferencedCount();
+        }
+    }
+
+    public void release(Bitmap bitmap) {
+        if (bitmap == null) {
+            return;
+        }
+        synchronized (mLocker) {
+            mCache.release(bitmap);
+            if (mClients.isEmpty()) {
+                // Released after the last client left, nobody will ask again
+                mCache.trimToSize(0);
+            }
+        }
+    }
+
+    /**
+     * Pick the next key to decode, serving clients round-robin.
+     * Cache hits and duplicates of in-flight keys are resolved on the way
+     * and collected into {@code hits} for delivery outside of the lock.
+     */
+    private Key pollNextLocked(List<Delivery> hits) {
+        int clientCount = mClients.size();
+        int idleCount   = 0;
+        while (clientCount > 0 && idleCount < clientCount) {
+            int     index   = mNextClient % clientCount;
+            Client  client  = mClients.get(index);
+            Request request = mClientQueues.get(client).poll();
+            mNextClient = (index + 1) % clientCount;
+            if (request == null) {
+                idleCount++;
+                continue;
+            }
+            idleCount = 0;
+            Tracer.advance(request.id, Tracer.Stage.Decode);
+
+            Key    key    = request.key;
+            Bitmap cached = mCache.acquire(key, client);
+            if (cached != null) {
+                hits.add(new Delivery(request, cached));
+                continue;
+            }
+
+            List<Request> waiters = mInFlight.get(key);
+            if (waiters != null) {
+                waiters.add(request);
+                continue;
+            }
+
+            waiters = new ArrayList<>();
+            waiters.add(request);
+            mInFlight.put(key, waiters);
+            return key;
+        }
+        return null;
+    }
+
+    /**
+     * Decode request key
+     */
+    public static final class Key {
+        public final String path;
+        public final int    width;
+        public final int    height;
+        public final Clamp  clamp;
+
+        public Key(String path, int width, int height, Clamp clamp) {
+            this.path   = path;
+            this.width  = width;
+            this.height = height;
+            this.clamp  = clamp;
+        }
+
+        @Override
+        public boolean equals(Object object) {
+            if (this == object) {
+                return true;
+            }
+            if (!(object instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) object;
+            return width == other.width
+                    && height == other.height
+                    && clamp == other.clamp
+                    && path.equals(other.path);
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = path.hashCode();
+            hash = 31 * hash + width;
+            hash = 31 * hash + height;
+            hash = 31 * hash + (clamp == null ? 0 : clamp.hashCode());
+            return hash;
+        }
+
+        @Override
+        public String toString() {
+            return path + " [" + width + "x" + height + ", " + clamp + "]";
+        }
+    }
+
+    /**
+     * A key queued by one client, with flags private to that client
+     */
+    public static final class Request {
+        public final int    id;
+        public final Client client;
+        public final Key    key;
+        public final int    flags;
+
+        Request(int id, Client client, Key key, int flags) {
+            this.id     = id;
+            this.client = client;
+            this.key    = key;
+            this.flags  = flags;
+        }
+    }
+
+    private static final class Delivery {
+        final Request request;
+        final Bitmap  bitmap;
+
+        Delivery(Request request, Bitmap bitmap) {
+            this.request = request;
+            this.bitmap  = bitmap;
+        }
+    }
+
+    /**
+     * Reference counted memory cache. Referenced bitmaps are never evicted,
+     * unreferenced ones are kept in LRU order up to the byte budget.
+     */
+    private static final class BitmapCache {
+        private final long                           mMaxUnusedBytes;
+        private final LinkedHashMap<Key, Entry>      mEntries     = new LinkedHashMap<>(16, 0.75f, true);
+        private final IdentityHashMap<Bitmap, Entry> mByBitmap    = new IdentityHashMap<>();
+        private       long                           mUnusedBytes = 0;
+
+        private static final class Entry {
+            final Key          key;
+            final Bitmap       bitmap;
+            final int          bytes;
+            final List<Client> requesters = new ArrayList<>(1);
+            int                refCount;
+            boolean            isStale    = false;
+
+            Entry(Key key, Bitmap bitmap, int refCount) {
+                this.key      = key;
+                this.bitmap   = bitmap;
+                this.bytes    = bitmap.getByteCount();
+                this.refCount = refCount;
+            }
+
+            void addRequester(Client client) {
+                if (!requesters.contains(client)) {
+                    requesters.add(client);
+                }
+            }
+
+            boolean isOnlyRequestedBy(Client client) {
+                return requesters.size() == 1 && requesters.get(0) == client;
+            }
+        }
+
+        BitmapCache(long maxUnusedBytes) {
+            mMaxUnusedBytes = maxUnusedBytes;
+        }
+
+        Bitmap acquire(Key key, Client client) {
+            Entry entry = mEntries.get(key);
+            if (entry == null) {
+                return null;
+            }
+            entry.addRequester(client);
+            entry.isStale = false;
+            if (entry.refCount == 0) {
+                mUnusedBytes -= entry.bytes;
+            }
+            entry.refCount++;
+            return entry.bitmap;
+        }
+
+        void put(Key key, Bitmap bitmap, List<Request> waiters) {
+            int   refCount = waiters.size();
+            Entry entry    = new Entry(key, bitmap, refCount);
+            for (Request waiter : waiters) {
+                entry.addRequester(waiter.client);
+            }
+            Entry old   = mEntries.put(key, entry);
+            if (old != null) {
+                mByBitmap.remove(old.bitmap);
+                if (old.refCount == 0) {
+                    mUnusedBytes -= old.bytes;
+                } else {
+                    // Still referenced by a drawer, keep it releasable
+                    mByBitmap.put(old.bitmap, old);
+                }
+            }
+            mByBitmap.put(bitmap, entry);
+            if (refCount == 0) {
+                mUnusedBytes += entry.bytes;
+                trimToSize(mMaxUnusedBytes);
+            }
+        }
+
+        void release(Bitmap bitmap) {
+            Entry entry = mByBitmap.get(bitmap);
+            if (entry == null || entry.refCount == 0) {
+                return;
+            }
+            entry.refCount--;
+            if (entry.refCount == 0) {
+                if (mEntries.get(entry.key) == entry && entry.isStale) {
+                    // Evicted while on screen, nobody wants this size anymore
+                    mEntries.remove(entry.key);
+                    mByBitmap.remove(bitmap);
+                } else if (mEntries.get(entry.key) == entry) {
+                    mUnusedBytes += entry.bytes;
+                    trimToSize(mMaxUnusedBytes);
+                } else {
+                    // Replaced while in use, drop it now
+                    mByBitmap.remove(bitmap);
+                }
+            }
+        }
+
+        int getReferencedCount() {
+            int count = 0;
+            for (Entry entry : mByBitmap.values()) {
+                if (entry.refCount > 0) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        void evict(Client client, int width, int height) {
+            Iterator<Entry> iterator = mEntries.values().iterator();
+            while (iterator.hasNext()) {
+                Entry entry = iterator.next();
+                if (entry.key.width != width || entry.key.height != height || !entry.isOnlyRequestedBy(client)) {
+                    continue;
+                }
+                if (entry.refCount == 0) {
+                    iterator.remove();
+                    mByBitmap.remove(entry.bitmap);
+                    mUnusedBytes -= entry.bytes;
+                } else {
+                    entry.isStale = true;
+                }
+            }
+        }
+
+        /**
+         * Don't keep a client that left reachable from its entries
+         */
+        void forget(Client client) {
+            for (Entry entry : mEntries.values()) {
+                entry.requesters.remove(client);
+            }
+        }
+
+        void trimToSize(long maxUnusedBytes) {
+            Iterator<Entry> iterator = mEntries.values().iterator();
+            while (mUnusedBytes > maxUnusedBytes && iterator.hasNext()) {
+                Entry entry = iterator.next();
+                if (entry.refCount == 0) {
+                    iterator.remove();
+                    mByBitmap.remove(entry.bitmap);
+                    mUnusedBytes -= entry.bytes;
+                }
+            }
+        }
+    }
+
+    /**
+     * Decode worker
+     */
+    private class Worker extends Thread {
+        private final Decoder mDecoder   = mDecoderFactory.newDecoder();
+        private       int     mIdleRound = 0;
+
+        Worker(int index) {
+            super(TAG + "-" + index);
+            setPriority(Thread.NORM_PRIORITY - 1);
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            List<Delivery> deliveries = new ArrayList<>();
+            while (true) {
+                Key key = null;
+                synchronized (mLocker) {
+                    key = pollNextLocked(deliveries);
+                    if (key == null && deliveries.isEmpty()) {
+                        if (mIdleRound != DecodeService.this.mIdleRound) {
+                            // Every client is gone, don't keep files open
+                            mIdleRound = DecodeService.this.mIdleRound;
+                            mDecoder.close();
+                        }
+                        try {
+                            mLocker.wait();
+                        } catch (InterruptedException e) {
+                            // Don't wanna see this stack trace
+                        }
+                        continue;
+                    }
+                }
+                deliver(deliveries);
+
+                if (key != null) {
+                    Bitmap bitmap = decode(key);
+                    synchronized (mLocker) {
+                        List<Request> waiters = mInFlight.remove(key);
+                        if (bitmap != null) {
+                            mCache.put(key, bitmap, waiters);
+                        }
+                        for (Request waiter : waiters) {
+                            deliveries.add(new Delivery(waiter, bitmap));
+                        }
+                    }
+                    deliver(deliveries);
+                }
+            }
+        }
+
+        /**
+         * @return the bitmap, or null if the decoder failed or threw
+         */
+        private Bitmap decode(Key key) {
+            Tracer.beginSection("DecodeService.decode");
+            try {
+                return mDecoder.decode(key);
+            } catch (RuntimeException | OutOfMemoryError e) {
+                // Waiters get null, the worker lives on for every other client
+                e.printStackTrace();
+                return null;
+            } finally {
+                Tracer.endSection();
+            }
+        }
+
+        private void deliver(List<Delivery> deliveries) {
+            for (Delivery delivery : deliveries) {
+                Tracer.advance(delivery.request.id, Tracer.Stage.Decoded);
+                try {
+                    delivery.request.client.onDecoded(delivery.request, delivery.bitmap);
+                } catch (RuntimeException e) {
+                    // One broken client mustn't take a shared worker down,
+                    // nor pin its bitmap in the cache
+                    e.printStackTrace();
+                    release(delivery.bitmap);
+                }
+            }
+            deliveries.clear();
+        }
+    }
+}
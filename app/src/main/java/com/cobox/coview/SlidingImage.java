@@ -3,10 +3,8 @@ package com.cobox.coview;
 import android.content.Context;
 import android.content.res.TypedArray;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.graphics.BitmapFactory.Options;
-import android.graphics.BitmapRegionDecoder;
 import android.graphics.Canvas;
+import android.graphics.ColorMatrixColorFilter;
 import android.graphics.LinearGradient;
 import android.graphics.Matrix;
 import android.graphics.Paint;
@@ -29,12 +27,18 @@ import com.example.cocoonshu.imagedream.R;
 
 import com.cobox.coview.SlidingImage.BitmapLoader.OnLoadedListener;
 
-import java.io.IOException;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Deque;
+import java.util.HashMap;
 import java.util.Iterator;
-import java.util.Queue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * A low effect sliding image view
@@ -43,7 +47,23 @@ import java.util.concurrent.LinkedBlockingQueue;
 public class SlidingImage extends View {
     public static final String TAG = "SlidingImage";
 
-    private enum Clamp {
+    private static final float PREVIEW_SCALE = 0.5f;
+
+    /**
+     * Renders the transitions of upcoming slides, below the decode workers
+     * so it never holds up a decode or a delivery
+     */
+    private static final ExecutorService sPrerenderExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, TAG + "-Prerender");
+            thread.setPriority(Thread.MIN_PRIORITY);
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    enum Clamp {
         Crop   (1),
         Fit    (2),
         Inside (3);
@@ -68,11 +88,17 @@ public class SlidingImage extends View {
         }
     }
 
-    private Clamp               mClamp            = Clamp.Crop;
-    private long                mDuration         = 1500;
-    private BitmapLoader        mBitmapLoader     = null;
-    private OnLoadedListener    mOnLoadedListener = null;
-    private Deque<BitmapDrawer> mDrawerQueue      = new ArrayDeque<>();
+    private Clamp                      mClamp           = Clamp.Crop;
+    private long                       mDuration        = 1500;
+    private float                      mMaskScale       = 1.0f;
+    private boolean                    mIsPrerendering  = false;
+    private long                       mPrerenderBudget = 0;
+    private long                       mPrerenderBytes  = 0;
+    private BitmapLoader               mBitmapLoader    = null;
+    private int                        mSlideCounter    = 0;
+    private Deque<BitmapDrawer>        mDrawerQueue     = new ArrayDeque<>();
+    private List<String>               mUpcomingPaths   = Collections.emptyList();
+    private Map<String, PreparedSlide> mPreparedSlides  = new HashMap<>();
 
     public SlidingImage(Context context) {
         this(context, null);
@@ -89,47 +115,294 @@ public class SlidingImage extends View {
     public SlidingImage(Context context, AttributeSet attrs, int defStyleAttr, int defStyleRes) {
         super(context, attrs, defStyleAttr, defStyleRes);
         decodeAttributes(context, attrs, defStyleAttr, defStyleRes);
-        initializeComponent();
     }
 
-    private void initializeComponent() {
-        mOnLoadedListener = new OnLoadedListener() {
+    /**
+     * Receives the bitmaps of one loader. Bitmaps delivered after the view
+     * moved on to another loader are handed back instead of being leaked.
+     */
+    private class LoaderListener implements OnLoadedListener {
 
-            private int counter = 0;
+        private final BitmapLoader mLoader;
 
-            @Override
-            public void onBitmapLoaded(Bitmap bitmap) {
-                BitmapDrawer drawer = counter % 2 == 0
-                        ? new RadialBitmapDrawer(bitmap)
-                        : new LinearBitmapDrawer(bitmap, counter % 3);
+        LoaderListener(BitmapLoader loader) {
+            mLoader = loader;
+        }
 
-                drawer.setDuration(mDuration);
+        @Override
+        public void onBitmapLoaded(int slideId, DecodeService.Key key, Bitmap bitmap) {
+            synchronized (mDrawerQueue) {
+                if (mBitmapLoader != mLoader) {
+                    mLoader.release(bitmap);
+                    Tracer.finish(slideId);
+                    return;
+                }
+
+                BitmapDrawer drawer = takePreparedDrawerLocked(key, bitmap);
+                if (drawer == null) {
+                    drawer = newDrawerLocked(bitmap);
+                }
+                drawer.setSlideId(slideId);
+                drawer.setDecodeKey(key);
                 drawer.start();
+                mDrawerQueue.offer(drawer);
+            }
+            postInvalidateOnAnimation();
+        }
+
+        @Override
+        public boolean onBitmapPrefetched(DecodeService.Key key, Bitmap bitmap) {
+            PreparedSlide slide;
+            synchronized (mDrawerQueue) {
+                if (mBitmapLoader != mLoader
+                        || mPreparedSlides.containsKey(key.path)
+                        || !mUpcomingPaths.contains(key.path)) {
+                    return false;
+                }
+
+                // A slide whose turn draws live keeps its turn for when it is shown
+                BitmapDrawer drawer = createDrawerLocked(bitmap);
+                if (!drawer.canPrerender() || !reservePrerenderLocked(key)) {
+                    return false;
+                }
+                mSlideCounter++;
+                slide = new PreparedSlide(mLoader, key, drawer);
+                mPreparedSlides.put(key.path, slide);
+                mPrerenderBytes += slide.reservedBytes;
+            }
+            sPrerenderExecutor.execute(slide);
+            return true;
+        }
+
+        @Override
+        public void onBitmapRefreshed(DecodeService.Key key, Bitmap bitmap) {
+            boolean isSwapped = false;
+            synchronized (mDrawerQueue) {
+                Iterator<BitmapDrawer> iterator = mDrawerQueue.descendingIterator();
+                while (mBitmapLoader == mLoader && iterator.hasNext() && !isSwapped) {
+                    BitmapDrawer      drawer    = iterator.next();
+                    DecodeService.Key drawerKey = drawer.getDecodeKey();
+                    if (drawerKey != null && drawerKey.path.equals(key.path) && !drawerKey.equals(key)) {
+                        mLoader.release(drawer.getBitmap());
+                        drawer.setBitmap(bitmap);
+                        drawer.setDecodeKey(key);
+                        isSwapped = true;
+                    }
+                }
+            }
+
+            if (isSwapped) {
                 postInvalidateOnAnimation();
-                counter++;
+            } else {
+                mLoader.release(bitmap);
+            }
+        }
+    }
 
+    /**
+     * An upcoming slide whose transition is rendered on the prerender thread
+     * while the current slide is shown. It holds a reference to its bitmap
+     * and its share of the budget until it is shown or dropped.
+     */
+    private class PreparedSlide implements Runnable {
+        final BitmapLoader      loader;
+        final DecodeService.Key key;
+        final BitmapDrawer      drawer;
+        final long              reservedBytes;
+
+        // Guarded by mDrawerQueue
+        boolean isRequested = false;
+        boolean isRendering = false;
+        boolean isReady     = false;
+        boolean isDropped   = false;
+        boolean isReleased  = false;
+
+        PreparedSlide(BitmapLoader loader, DecodeService.Key key, BitmapDrawer drawer) {
+            this.loader        = loader;
+            this.key           = key;
+            this.drawer        = drawer;
+            this.reservedBytes = BitmapDrawer.getPrerenderBytes(key.width, key.height);
+        }
+
+        @Override
+        public void run() {
+            synchronized (mDrawerQueue) {
+                if (isDropped) {
+                    return;
+                }
+                isRendering = true;
+            }
+
+            boolean isRendered = false;
+            Tracer.beginSection("SlidingImage.prerender");
+            try {
+                isRendered = drawer.prerender(key.width, key.height);
+            } finally {
+                Tracer.endSection();
                 synchronized (mDrawerQueue) {
-                    mDrawerQueue.offer(drawer);
+                    isRendering = false;
+                    if (isRendered && !isDropped) {
+                        isReady = true;
+                    } else {
+                        dropPreparedSlideLocked(this);
+                    }
                 }
             }
-        };
+        }
+    }
+
+    /**
+     * The drawer prepared for this slide, if its transition is ready and was
+     * rendered from this very bitmap. Any other preparation of the path is dropped.
+     */
+    private BitmapDrawer takePreparedDrawerLocked(DecodeService.Key key, Bitmap bitmap) {
+        PreparedSlide slide = mPreparedSlides.get(key.path);
+        if (slide == null) {
+            return null;
+        }
+        if (!slide.isReady || !slide.key.equals(key) || slide.drawer.getBitmap() != bitmap) {
+            dropPreparedSlideLocked(slide);
+            return null;
+        }
+
+        // The drawer keeps the reference of the delivery, the one of the
+        // preparation goes back, and its reveal map now counts in the queue
+        mPreparedSlides.remove(key.path);
+        slide.isDropped  = true;
+        slide.isReleased = true;
+        mPrerenderBytes -= slide.reservedBytes;
+        slide.loader.release(bitmap);
+        return slide.drawer;
+    }
+
+    /**
+     * Forget a prepared slide. A slide still rendering is released by the
+     * prerender thread when it is done.
+     */
+    private void dropPreparedSlideLocked(PreparedSlide slide) {
+        if (mPreparedSlides.get(slide.key.path) == slide) {
+            mPreparedSlides.remove(slide.key.path);
+        }
+        slide.isDropped = true;
+        if (!slide.isRendering && !slide.isReleased) {
+            slide.isReleased = true;
+            mPrerenderBytes -= slide.reservedBytes;
+            slide.loader.release(slide.drawer.getBitmap());
+        }
+    }
+
+    private void dropPreparedSlidesLocked() {
+        for (PreparedSlide slide : new ArrayList<>(mPreparedSlides.values())) {
+            dropPreparedSlideLocked(slide);
+        }
+    }
+
+    /**
+     * Transitions take turns, prepared slides take theirs when they are
+     * prepared. Call with the queue locked.
+     */
+    private BitmapDrawer newDrawerLocked(Bitmap bitmap) {
+        BitmapDrawer drawer = createDrawerLocked(bitmap);
+        mSlideCounter++;
+        return drawer;
+    }
+
+    /**
+     * The drawer of the current turn, without taking it
+     */
+    private BitmapDrawer createDrawerLocked(Bitmap bitmap) {
+        BitmapDrawer drawer = mSlideCounter % 2 == 0
+                ? new RadialBitmapDrawer(bitmap)
+                : new LinearBitmapDrawer(bitmap, mSlideCounter % 3);
+        drawer.setDuration(mDuration);
+        drawer.setMaskScale(mMaskScale);
+        return drawer;
     }
 
     private void decodeAttributes(Context context, AttributeSet attrs, int defStyleAttr, int defStyleRes) {
         TypedArray array = context.obtainStyledAttributes(attrs, R.styleable.SlidingImage, defStyleAttr, defStyleRes);
         if (array != null) {
-            mClamp    = Clamp.ValueOf(array.getInt(R.styleable.SlidingImage_clamp, mClamp.getValue()));
-            mDuration = array.getInteger(R.styleable.SlidingImage_duration, (int) mDuration);
+            mClamp     = Clamp.ValueOf(array.getInt(R.styleable.SlidingImage_clamp, mClamp.getValue()));
+            mDuration  = array.getInteger(R.styleable.SlidingImage_duration, (int) mDuration);
+            mMaskScale = array.getFloat(R.styleable.SlidingImage_maskScale, mMaskScale);
+            setPrerender(
+                    array.getBoolean(R.styleable.SlidingImage_prerender, mIsPrerendering),
+                    array.getInteger(R.styleable.SlidingImage_prerenderBudget, 0) * 1024L);
             array.recycle();
         }
     }
 
+    /**
+     * Transition duration of the slides loaded from now on
+     */
+    public void setDuration(long duration) {
+        mDuration = duration < 1 ? 1 : duration;
+    }
+
+    /**
+     * Resolution of the transition masks as a fraction of the view size.
+     * Masks are smooth alpha ramps, so 0.25 looks the same as 1.0 once upscaled.
+     * 1.0 renders them live at full resolution.
+     */
+    public void setMaskScale(float maskScale) {
+        mMaskScale = maskScale;
+    }
+
+    /**
+     * Pre-render the transitions of the upcoming slides prefetched through
+     * {@link #setUpcomingImages(List)} on a low priority thread while the
+     * current slide is shown. A pre-rendered radial transition is a reveal map
+     * of the view size, drawn in one blit per frame instead of a layer and a
+     * mask. Linear transitions are always drawn live. Prepared and shown slides
+     * share {@code budgetBytes} (0 for 1/8 of the heap), slides that don't fit
+     * are drawn live.
+     */
+    public void setPrerender(boolean isPrerendering, long budgetBytes) {
+        synchronized (mDrawerQueue) {
+            mIsPrerendering  = isPrerendering;
+            mPrerenderBudget = budgetBytes > 0 ? budgetBytes : Runtime.getRuntime().maxMemory() / 8;
+        }
+    }
+
+    /**
+     * Reserve the budget for the reveal map of one slide, call with the queue locked
+     * @return false to draw the slide live
+     */
+    private boolean reservePrerenderLocked(DecodeService.Key key) {
+        if (!mIsPrerendering || key.width <= 0 || key.height <= 0) {
+            return false;
+        }
+
+        long usedBytes = mPrerenderBytes;
+        for (BitmapDrawer drawer : mDrawerQueue) {
+            usedBytes += drawer.getPrerenderedBytes();
+        }
+        return usedBytes + BitmapDrawer.getPrerenderBytes(key.width, key.height) <= mPrerenderBudget;
+    }
+
     public void setBitmapLoader(BitmapLoader loader) {
-        mBitmapLoader = loader;
-        if (mBitmapLoader != null) {
-            mBitmapLoader.setBitmapClamp(mClamp);
-            mBitmapLoader.setBitmapSize(getWidth(), getHeight());
-            mBitmapLoader.setOnLoadedListener(mOnLoadedListener);
+        synchronized (mDrawerQueue) {
+            if (mBitmapLoader == loader) {
+                return;
+            }
+            if (mBitmapLoader != null) {
+                mBitmapLoader.setOnLoadedListener(null);
+                for (BitmapDrawer drawer : mDrawerQueue) {
+                    mBitmapLoader.release(drawer.getBitmap());
+                    Tracer.finish(drawer.getSlideId());
+                }
+                mDrawerQueue.clear();
+            }
+            dropPreparedSlidesLocked();
+            mBitmapLoader = loader;
+        }
+
+        if (loader != null) {
+            loader.setBitmapClamp(mClamp);
+            if (getWidth() > 0 && getHeight() > 0) {
+                loader.setBitmapSize(getWidth(), getHeight());
+            }
+            loader.setOnLoadedListener(new LoaderListener(loader));
         }
     }
 
@@ -174,15 +447,89 @@ public class SlidingImage extends View {
     @Override
     protected void onSizeChanged(int w, int h, int oldw, int oldh) {
         super.onSizeChanged(w, h, oldw, oldh);
-        if (mBitmapLoader != null) {
+        if (mBitmapLoader != null && w > 0 && h > 0) {
+            synchronized (mDrawerQueue) {
+                dropPreparedSlidesLocked();
+            }
             mBitmapLoader.setBitmapSize(w, h);
+            refreshDrawers(w, h);
+        }
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        RadialBitmapDrawer.trimMaskCache();
+    }
+
+    /**
+     * Show a cheap rescale of the current slide at once, and ask the loader
+     * to re-decode every slide on screen at the new size in the background
+     */
+    private void refreshDrawers(int width, int height) {
+        BitmapLoader loader    = mBitmapLoader;
+        boolean      isCurrent = true;
+        synchronized (mDrawerQueue) {
+            Iterator<BitmapDrawer> iterator = mDrawerQueue.descendingIterator();
+            while (iterator.hasNext()) {
+                BitmapDrawer      drawer = iterator.next();
+                DecodeService.Key key    = drawer.getDecodeKey();
+                if (key == null || (key.width == width && key.height == height)) {
+                    continue;
+                }
+
+                if (isCurrent) {
+                    Bitmap preview = createPreviewBitmap(drawer.getBitmap(), width, height);
+                    if (preview != null) {
+                        loader.release(drawer.getBitmap());
+                        drawer.setBitmap(preview);
+                    }
+                    isCurrent = false;
+                }
+                loader.refreshImagePath(key.path);
+            }
+        }
+    }
+
+    private static Bitmap createPreviewBitmap(Bitmap source, int width, int height) {
+        if (source == null || source.isRecycled()) {
+            return null;
         }
+
+        int   previewWidth  = Math.max(1, Math.round(width * PREVIEW_SCALE));
+        int   previewHeight = Math.max(1, Math.round(height * PREVIEW_SCALE));
+        float sourceWidth   = source.getWidth();
+        float sourceHeight  = source.getHeight();
+        float viewRatio     = (float) width / (float) height;
+        Rect  cropRect      = new Rect();
+        if (sourceWidth / sourceHeight > viewRatio) {
+            float cropWidth = sourceHeight * viewRatio;
+            cropRect.set(Math.round((sourceWidth - cropWidth) * 0.5f), 0,
+                         Math.round((sourceWidth + cropWidth) * 0.5f), (int) sourceHeight);
+        } else {
+            float cropHeight = sourceWidth / viewRatio;
+            cropRect.set(0, Math.round((sourceHeight - cropHeight) * 0.5f),
+                         (int) sourceWidth, Math.round((sourceHeight + cropHeight) * 0.5f));
+        }
+
+        Bitmap preview = Bitmap.createBitmap(previewWidth, previewHeight, Bitmap.Config.ARGB_8888);
+        Canvas canvas  = new Canvas(preview);
+        canvas.drawBitmap(source, cropRect, new RectF(0, 0, previewWidth, previewHeight), new Paint(Paint.FILTER_BITMAP_FLAG));
+        return preview;
     }
 
     @Override
     protected void onDraw(Canvas canvas) {
         super.onDraw(canvas);
+        Tracer.beginSection("SlidingImage.onDraw");
+        try {
+            drawSlides(canvas);
+        } finally {
+            Tracer.endSection();
+        }
+    }
 
+    private void drawSlides(Canvas canvas) {
         boolean hasMoreFrames = false;
         synchronized (mDrawerQueue) {
             Iterator<BitmapDrawer> iterator = mDrawerQueue.iterator();
@@ -194,6 +541,9 @@ public class SlidingImage extends View {
                     hasAnimation = drawer.draw(canvas);
                     if (!hasAnimation && mDrawerQueue.size() > 2) {
                         iterator.remove();
+                        if (mBitmapLoader != null) {
+                            mBitmapLoader.release(drawer.getBitmap());
+                        }
                     }
                 }
                 hasMoreFrames |= hasAnimation;
@@ -206,18 +556,52 @@ public class SlidingImage extends View {
     }
 
     public void setNextImageBitmap(String imagePath) {
+        synchronized (mDrawerQueue) {
+            PreparedSlide slide = imagePath == null ? null : mPreparedSlides.get(imagePath);
+            if (slide != null) {
+                // Kept until it is delivered, though it leaves the upcoming window
+                slide.isRequested = true;
+            }
+        }
         if (mBitmapLoader != null) {
             mBitmapLoader.addImagePath(imagePath);
         }
     }
 
+    /**
+     * Decode the upcoming slides into the shared cache ahead of time, and
+     * pre-render their transitions if {@link #setPrerender} is on
+     */
+    public void setUpcomingImages(List<String> imagePaths) {
+        synchronized (mDrawerQueue) {
+            mUpcomingPaths = imagePaths == null ? Collections.<String>emptyList() : new ArrayList<>(imagePaths);
+            for (PreparedSlide slide : new ArrayList<>(mPreparedSlides.values())) {
+                if (!slide.isRequested && !mUpcomingPaths.contains(slide.key.path)) {
+                    dropPreparedSlideLocked(slide);
+                }
+            }
+        }
+        if (mBitmapLoader != null) {
+            mBitmapLoader.prefetchImagePaths(imagePaths);
+        }
+    }
+
     public static abstract class BitmapDrawer {
-        private Bitmap       mBitmap       = null;
-        private Interpolator mInterpolator = new DecelerateInterpolator(1.5f);
-        private RectF        mBound        = new RectF();
-        private long         mStartTime    = 0;
-        private long         mProgress     = 0;
-        private long         mDuration     = 500;
+        public static final float MIN_MASK_SCALE = 1.0f / 16.0f;
+
+        private Bitmap            mBitmap        = null;
+        private DecodeService.Key mDecodeKey     = null;
+        private String            mTraceName     = getClass().getSimpleName() + ".onDraw";
+        private int               mSlideId       = 0;
+        private boolean           mIsFinished    = false;
+        private Interpolator      mInterpolator  = new DecelerateInterpolator(1.5f);
+        private RectF             mBound         = new RectF();
+        private boolean           mIsBoundDirty  = true;
+        private long              mStartTime     = 0;
+        private long              mProgress      = 0;
+        private long              mDuration      = 500;
+        private float             mMaskScale     = 1.0f;
+        private Bitmap            mPrerendered   = null;
 
         public BitmapDrawer(Bitmap bitmap) {
             mBitmap = bitmap;
@@ -227,12 +611,43 @@ public class SlidingImage extends View {
             mDuration = duration;
         }
 
+        /**
+         * Render the mask at {@code maskScale} of the bound and upscale it
+         * while compositing, 1.0 draws the gradient live at full resolution
+         */
+        public void setMaskScale(float maskScale) {
+            maskScale     = maskScale > 1.0f ? 1.0f : maskScale < MIN_MASK_SCALE ? MIN_MASK_SCALE : maskScale;
+            mIsBoundDirty = mIsBoundDirty || mMaskScale != maskScale;
+            mMaskScale    = maskScale;
+        }
+
+        protected float getMaskScale() {
+            return mMaskScale;
+        }
+
+        protected boolean isMaskCached() {
+            return mMaskScale < 1.0f;
+        }
+
         public void start() {
             mStartTime = AnimationUtils.currentAnimationTimeMillis();
+            Tracer.advance(mSlideId, Tracer.Stage.Transition);
         }
 
         public void setBound(int left, int top, int right, int bottom) {
+            if (!mIsBoundDirty
+                    && mBound.left == left && mBound.top == top
+                    && mBound.right == right && mBound.bottom == bottom) {
+                return;
+            }
             mBound.set(left, top, right, bottom);
+            mIsBoundDirty = false;
+            mPrerendered  = null;
+            onBoundChanged();
+        }
+
+        protected void onBoundChanged() {
+            // Override to cache layout that depends on bound and bitmap
         }
 
         protected RectF getBound() {
@@ -243,9 +658,87 @@ public class SlidingImage extends View {
             return mBitmap;
         }
 
+        protected void setBitmap(Bitmap bitmap) {
+            mBitmap       = bitmap;
+            mIsBoundDirty = true;
+            mPrerendered  = null;
+        }
+
+        /**
+         * Render what the transition needs for a bound of the given size ahead
+         * of time, so that {@link #onDraw(Canvas, float)} gets away with one
+         * blit per frame. Call before the drawer is shown, from any thread. The
+         * result is dropped when the transition ends or the bound or bitmap changes.
+         * @return false if the drawer draws live or the result didn't fit in memory
+         */
+        public final boolean prerender(int width, int height) {
+            if (mBitmap == null || width <= 0 || height <= 0) {
+                return false;
+            }
+
+            Bitmap prerendered;
+            try {
+                setBound(0, 0, width, height);
+                prerendered = onPrerender();
+            } catch (OutOfMemoryError e) {
+                prerendered = null;
+            }
+            mPrerendered = prerendered;
+            return prerendered != null;
+        }
+
+        /**
+         * Override in drawers whose frames come down to one draw of a single
+         * bitmap. Called after the bound is set.
+         * @return the bitmap {@link #getPrerendered()} hands back, null to draw live
+         */
+        protected Bitmap onPrerender() {
+            return null;
+        }
+
+        /**
+         * Drawers that can pre-render override {@link #onPrerender()}
+         */
+        public boolean canPrerender() {
+            return false;
+        }
+
+        protected Bitmap getPrerendered() {
+            return mPrerendered;
+        }
+
+        /**
+         * Size of the bitmap {@link #onPrerender()} renders for a bound of the given size
+         */
+        static long getPrerenderBytes(int width, int height) {
+            return (long) width * (long) height * 4L;
+        }
+
+        long getPrerenderedBytes() {
+            Bitmap prerendered = mPrerendered;
+            return prerendered == null ? 0 : prerendered.getByteCount();
+        }
+
+        public DecodeService.Key getDecodeKey() {
+            return mDecodeKey;
+        }
+
+        public void setDecodeKey(DecodeService.Key key) {
+            mDecodeKey = key;
+        }
+
+        public int getSlideId() {
+            return mSlideId;
+        }
+
+        public void setSlideId(int slideId) {
+            mSlideId = slideId;
+        }
+
         public boolean draw(Canvas canvas) {
             boolean hasMoreFrames = false;
             if (mBitmap == null) {
+                finish();
                 return false;
             }
 
@@ -255,12 +748,28 @@ public class SlidingImage extends View {
 
             if (canvas != null) {
                 float percent = mInterpolator.getInterpolation((float) mProgress / (float) mDuration);
-                hasMoreFrames |= onDraw(canvas, percent);
+                Tracer.beginSection(mTraceName);
+                try {
+                    hasMoreFrames |= onDraw(canvas, percent);
+                } finally {
+                    Tracer.endSection();
+                }
             }
 
+            if (!hasMoreFrames) {
+                finish();
+            }
             return hasMoreFrames;
         }
 
+        private void finish() {
+            mPrerendered = null;
+            if (!mIsFinished) {
+                mIsFinished = true;
+                Tracer.finish(mSlideId);
+            }
+        }
+
         protected abstract boolean onDraw(Canvas canvas, float animationProgress);
     }
 
@@ -268,20 +777,35 @@ public class SlidingImage extends View {
      * Radial gradient drawer
      */
     public static class RadialBitmapDrawer extends BitmapDrawer {
-        public static final float CENTER_RL_POS = 0.8f;
+        public  static final float CENTER_RL_POS    = 0.8f;
+        private static final int   MASK_CACHE_SIZE  = 2;
+        private static final int   REVEAL_MIN_ALPHA = 64;
 
         private Paint          mImagePaint   = new Paint(Paint.FILTER_BITMAP_FLAG);
         private Matrix         mImageMatrix  = new Matrix();
         private Xfermode       mXfermode     = new PorterDuffXfermode(PorterDuff.Mode.SRC_IN);
         private Paint          mMaskPaint    = new Paint(Paint.ANTI_ALIAS_FLAG);
+        private Bitmap         mMaskBitmap   = null;
+        private Matrix         mMaskMatrix   = new Matrix();
+        private Paint          mRevealPaint  = new Paint();
+        private float[]        mRevealArray  = new float[20];
+
+        private static final LinkedHashMap<Integer, Bitmap> sMaskBitmaps = new LinkedHashMap<Integer, Bitmap>(MASK_CACHE_SIZE, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Bitmap> eldest) {
+                // Drawers still holding an evicted mask keep it until they finish
+                return size() > MASK_CACHE_SIZE;
+            }
+        };
 
         public RadialBitmapDrawer(Bitmap bitmap) {
             super(bitmap);
         }
 
-        public void setBound(int left, int top, int right, int bottom) {
-            super.setBound(left, top, right, bottom);
+        @Override
+        protected void onBoundChanged() {
             mImageMatrix.reset();
+            mMaskBitmap = null;
 
             Bitmap bitmap  = getBitmap();
             RectF  bound   = getBound();
@@ -290,6 +814,100 @@ public class SlidingImage extends View {
                         bound.width() / (float) bitmap.getWidth(),
                         bound.height() / (float) bitmap.getHeight());
             }
+            if (isMaskCached() && !bound.isEmpty()) {
+                // Sized for the last frame, the largest the mask gets
+                double maskDiameter = Math.hypot(bound.width(), bound.height()) * (2.0f - CENTER_RL_POS);
+                mMaskBitmap = obtainMaskBitmap((int) Math.ceil(maskDiameter * getMaskScale()));
+            }
+        }
+
+        /**
+         * The radial mask in a square texture, shared by every radial drawer
+         * of the same size and scaled to the current radius on each frame.
+         * The last {@link #MASK_CACHE_SIZE} sizes are kept, enough for two
+         * views or both orientations of one.
+         */
+        private static synchronized Bitmap obtainMaskBitmap(int size) {
+            size = size < 2 ? 2 : size;
+            Bitmap cached = sMaskBitmaps.get(size);
+            if (cached != null) {
+                return cached;
+            }
+
+            Bitmap mask   = Bitmap.createBitmap(size, size, Bitmap.Config.ALPHA_8);
+            Canvas canvas = new Canvas(mask);
+            Paint  paint  = new Paint(Paint.ANTI_ALIAS_FLAG);
+            paint.setShader(
+                    new RadialGradient(
+                            size * 0.5f, size * 0.5f, size * 0.5f,
+                            new int[] {0xFFFFFFFF, 0xFFFFFFFF, 0x00FFFFFF},
+                            new float[] {0.0f, CENTER_RL_POS, 1.0f}, Shader.TileMode.CLAMP));
+            canvas.drawRect(0, 0, size, size, paint);
+            sMaskBitmaps.put(size, mask);
+            return mask;
+        }
+
+        /**
+         * Drop the cached masks, drawers holding one keep it until they finish
+         */
+        public static synchronized void trimMaskCache() {
+            sMaskBitmaps.clear();
+        }
+
+        @Override
+        public boolean canPrerender() {
+            return true;
+        }
+
+        /**
+         * The reveal map: the image scaled to the bound, with each pixel's
+         * distance to the center in its alpha, from 255 at the center down to
+         * {@link #REVEAL_MIN_ALPHA} in the corners. Every frame is then a
+         * threshold on that alpha, see {@link #drawReveal}.
+         */
+        @Override
+        protected Bitmap onPrerender() {
+            Bitmap bitmap = getBitmap();
+            RectF  bound  = getBound();
+            Bitmap reveal = Bitmap.createBitmap((int) bound.width(), (int) bound.height(), Bitmap.Config.ARGB_8888);
+            Canvas canvas = new Canvas(reveal);
+            canvas.drawBitmap(bitmap, mImageMatrix, mImagePaint);
+
+            Paint paint = new Paint();
+            paint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.DST_IN));
+            paint.setShader(
+                    new RadialGradient(
+                            bound.width() * 0.5f, bound.height() * 0.5f,
+                            (float) (Math.hypot(bound.width(), bound.height()) * 0.5f),
+                            0xFFFFFFFF, (REVEAL_MIN_ALPHA << 24) | 0x00FFFFFF, Shader.TileMode.CLAMP));
+            canvas.drawRect(0, 0, bound.width(), bound.height(), paint);
+            canvas.setBitmap(null);
+            return reveal;
+        }
+
+        /**
+         * Draw the frame in one blit of the reveal map. The live mask is opaque
+         * up to {@link #CENTER_RL_POS} of its radius and fades out linearly to
+         * the radius, so its alpha is linear in the distance, and the distance
+         * is linear in the alpha of the map: a color matrix maps one to the other.
+         */
+        private void drawReveal(Canvas canvas, Bitmap reveal, float animationProgress) {
+            if (animationProgress <= 0) {
+                return;
+            }
+
+            // alpha = (1 - u / (p * (2 - c))) / (1 - c), with u the distance to
+            // the center in half diagonals, and u = (1 - a) / (1 - a0) in the map
+            float fadeWidth  = 1.0f - CENTER_RL_POS;
+            float mapRange   = 1.0f - REVEAL_MIN_ALPHA / 255.0f;
+            float alphaScale = 1.0f / (mapRange * animationProgress * (2.0f - CENTER_RL_POS) * fadeWidth);
+            mRevealArray[0]  = 1.0f;
+            mRevealArray[6]  = 1.0f;
+            mRevealArray[12] = 1.0f;
+            mRevealArray[18] = alphaScale;
+            mRevealArray[19] = 255.0f * (1.0f / fadeWidth - alphaScale);
+            mRevealPaint.setColorFilter(new ColorMatrixColorFilter(mRevealArray));
+            canvas.drawBitmap(reveal, null, getBound(), mRevealPaint);
         }
 
         @Override
@@ -301,6 +919,14 @@ public class SlidingImage extends View {
                 return false;
             }
 
+            Bitmap reveal = getPrerendered();
+            if (reveal != null) {
+                if (canvas != null) {
+                    drawReveal(canvas, reveal, animationProgress);
+                }
+                return hasMoreFrames;
+            }
+
             float centerX = bound.centerX();
             float centerY = bound.centerY();
             float radius  = (float) (animationProgress * Math.hypot(bound.width(), bound.height()) * 0.5f);
@@ -310,12 +936,22 @@ public class SlidingImage extends View {
 
                 {// Draw animation and xfermode
                     mMaskPaint.setColor(0xFFFFFFFF);
-                    mMaskPaint.setShader(
-                            new RadialGradient(
-                                    centerX, centerY, radius * (2.0f - CENTER_RL_POS),
-                                    new int[] {0xFFFFFFFF, 0xFFFFFFFF, 0x00FFFFFF},
-                                    new float[] {0.0f, CENTER_RL_POS, 1.0f}, Shader.TileMode.CLAMP));
-                    canvas.drawCircle(centerX, centerY, radius * (1.0f + CENTER_RL_POS), mMaskPaint);
+                    if (mMaskBitmap != null) {
+                        float maskRadius = radius * (2.0f - CENTER_RL_POS);
+                        float maskScale  = maskRadius / (mMaskBitmap.getWidth() * 0.5f);
+                        mMaskMatrix.setScale(maskScale, maskScale);
+                        mMaskMatrix.postTranslate(centerX - maskRadius, centerY - maskRadius);
+                        mMaskPaint.setShader(null);
+                        mMaskPaint.setFilterBitmap(true);
+                        canvas.drawBitmap(mMaskBitmap, mMaskMatrix, mMaskPaint);
+                    } else {
+                        mMaskPaint.setShader(
+                                new RadialGradient(
+                                        centerX, centerY, radius * (2.0f - CENTER_RL_POS),
+                                        new int[] {0xFFFFFFFF, 0xFFFFFFFF, 0x00FFFFFF},
+                                        new float[] {0.0f, CENTER_RL_POS, 1.0f}, Shader.TileMode.CLAMP));
+                        canvas.drawCircle(centerX, centerY, radius * (1.0f + CENTER_RL_POS), mMaskPaint);
+                    }
 
                     mImagePaint.setXfermode(mXfermode);
                     canvas.drawBitmap(bitmap, mImageMatrix, mImagePaint);
@@ -345,16 +981,19 @@ public class SlidingImage extends View {
         private Paint          mMaskPaint    = new Paint(Paint.ANTI_ALIAS_FLAG);
         private int            mDirection    = HORIZONTAL;
         private Rect           mClipRect     = new Rect();
+        private Bitmap         mMaskBitmap   = null;
+        private Matrix         mMaskMatrix   = new Matrix();
 
         public LinearBitmapDrawer(Bitmap bitmap, int direction) {
             super(bitmap);
             mDirection = direction;
         }
 
-        public void setBound(int left, int top, int right, int bottom) {
-            super.setBound(left, top, right, bottom);
+        @Override
+        protected void onBoundChanged() {
             mImageMatrix.reset();
             mClipRect.setEmpty();
+            mMaskBitmap = null;
 
             Bitmap bitmap = getBitmap();
             RectF  bound  = getBound();
@@ -363,6 +1002,42 @@ public class SlidingImage extends View {
                         bound.width() / (float) bitmap.getWidth(),
                         bound.height() / (float) bitmap.getHeight());
             }
+            if (isMaskCached() && !bound.isEmpty()) {
+                float bandWidth = (mDirection == HORIZONTAL ? bound.width() : bound.height()) * LINEAR_WIDTH;
+                mMaskBitmap = createMaskBitmap((int) Math.ceil(bandWidth * getMaskScale()), mDirection);
+            }
+        }
+
+        /**
+         * The band profile in a one pixel strip, stretched over the band on each frame
+         */
+        private static Bitmap createMaskBitmap(int length, int direction) {
+            length = length < 2 ? 2 : length;
+
+            boolean isHorizontal = direction == HORIZONTAL;
+            Bitmap  mask         = isHorizontal
+                                    ? Bitmap.createBitmap(length, 1, Bitmap.Config.ALPHA_8)
+                                    : Bitmap.createBitmap(1, length, Bitmap.Config.ALPHA_8);
+            Canvas  canvas       = new Canvas(mask);
+            Paint   paint        = new Paint();
+            paint.setShader(
+                    new LinearGradient(
+                            0.0f, 0.0f, isHorizontal ? length : 0.0f, isHorizontal ? 0.0f : length,
+                            new int[] {0x00000000, 0xFFFFFFFF, 0xFFFFFFFF, 0xFFFFFFFF, 0x00000000},
+                            new float[] {0.0f, CENTER_RL_POS, 0.5f, 1f - CENTER_RL_POS, 1.0f},
+                            Shader.TileMode.CLAMP));
+            canvas.drawRect(0, 0, mask.getWidth(), mask.getHeight(), paint);
+            return mask;
+        }
+
+        private void drawMaskBitmap(Canvas canvas, float left, float top, float right, float bottom) {
+            mMaskMatrix.setScale(
+                    (right - left) / (float) mMaskBitmap.getWidth(),
+                    (bottom - top) / (float) mMaskBitmap.getHeight());
+            mMaskMatrix.postTranslate(left, top);
+            mMaskPaint.setShader(null);
+            mMaskPaint.setFilterBitmap(true);
+            canvas.drawBitmap(mMaskBitmap, mMaskMatrix, mMaskPaint);
         }
 
         @Override
@@ -384,7 +1059,19 @@ public class SlidingImage extends View {
 
                 {// Draw animation and xfermode
                     mMaskPaint.setColor(0xFFFFFFFF);
-                    if (mDirection == HORIZONTAL) {
+                    if (mMaskBitmap != null) {
+                        if (mDirection == HORIZONTAL) {
+                            drawMaskBitmap(canvas,
+                                    linePosition - width * LINEAR_WIDTH * 0.5f, 0.0f,
+                                    linePosition + width * LINEAR_WIDTH * 0.5f, height);
+                            mClipRect.set(0, 0, Math.round(linePosition + width * LINEAR_WIDTH * 0.5f), Math.round(height));
+                        } else {
+                            drawMaskBitmap(canvas,
+                                    0.0f, linePosition - height * LINEAR_WIDTH * 0.5f,
+                                    width, linePosition + height * LINEAR_WIDTH * 0.5f);
+                            mClipRect.set(0, 0, Math.round(width), Math.round(linePosition + height * LINEAR_WIDTH * 0.5f));
+                        }
+                    } else if (mDirection == HORIZONTAL) {
                         mMaskPaint.setShader(
                                 new LinearGradient(
                                         linePosition - width * LINEAR_WIDTH * 0.5f, 0.5f * height,
@@ -430,26 +1117,55 @@ public class SlidingImage extends View {
     }
 
     /**
-     * Bitmap loader
+     * Bitmap loader, a client of the process-wide {@link DecodeService}
      */
-    public static class BitmapLoader extends Thread {
-        private int              mBitmapWidth      = 0;
-        private int              mBitmapHeight     = 0;
-        private boolean          mIsKeepRunning    = true;
-        private Clamp            mClamp            = Clamp.Crop; // TODO Implemented
-        private Object           mLocker           = new Object();
-        private Queue<String>    mImagePathQueue   = new LinkedBlockingQueue<>();
-        private OnLoadedListener mOnLoadedListener = null;
+    public static class BitmapLoader implements DecodeService.Client {
+        private static final int FLAG_REFRESH  = 0x1;
+        private static final int FLAG_PREFETCH = 0x2;
+
+        private volatile BitmapSize       mBitmapSize       = new BitmapSize(0, 0);
+        private volatile boolean          mIsKeepRunning    = true;
+        private          Clamp            mClamp            = Clamp.Crop; // TODO Implemented
+        private          DecodeService    mDecodeService    = null;
+        private volatile OnLoadedListener mOnLoadedListener = null;
+        private volatile List<String>     mPrefetchPaths    = null;
 
         protected interface OnLoadedListener {
-            void onBitmapLoaded(Bitmap bitmap);
+            void onBitmapLoaded(int slideId, DecodeService.Key key, Bitmap bitmap);
+            void onBitmapRefreshed(DecodeService.Key key, Bitmap bitmap);
+            /**
+             * @return true to keep the bitmap, it is released through the loader later
+             */
+            boolean onBitmapPrefetched(DecodeService.Key key, Bitmap bitmap);
+        }
+
+        /**
+         * Target size of the decodes, published as one value so a reader
+         * never sees the width of one size with the height of another
+         */
+        private static final class BitmapSize {
+            final int width;
+            final int height;
+
+            BitmapSize(int width, int height) {
+                this.width  = width;
+                this.height = height;
+            }
+
+            boolean matches(DecodeService.Key key) {
+                return key.width == width && key.height == height;
+            }
         }
 
         public BitmapLoader(Context context) {
+            this(context, DecodeService.getInstance());
+        }
+
+        public BitmapLoader(Context context, DecodeService service) {
+            mDecodeService = service;
             if (context != null) {
                 DisplayMetrics metrics = context.getResources().getDisplayMetrics();
-                mBitmapWidth  = metrics.widthPixels;
-                mBitmapHeight = metrics.heightPixels;
+                mBitmapSize = new BitmapSize(metrics.widthPixels, metrics.heightPixels);
             }
         }
 
@@ -457,114 +1173,106 @@ public class SlidingImage extends View {
             mOnLoadedListener = listener;
         }
 
+        public void start() {
+            mDecodeService.register(this);
+        }
+
         public void addImagePath(String path) {
-            if (!mIsKeepRunning || path == null || path.trim().isEmpty()) {
+            enqueueImagePath(path, 0);
+        }
+
+        /**
+         * Re-decode an image already on screen at the current bitmap size
+         */
+        public void refreshImagePath(String path) {
+            enqueueImagePath(path, FLAG_REFRESH);
+        }
+
+        /**
+         * Decode images into the shared cache without showing them, the window
+         * is decoded again at the new size if the bitmap size changes
+         */
+        public void prefetchImagePaths(List<String> paths) {
+            mPrefetchPaths = paths;
+            if (paths == null) {
                 return;
             }
-            synchronized (mImagePathQueue) {
-                mImagePathQueue.offer(path);
+            for (String path : paths) {
+                enqueueImagePath(path, FLAG_PREFETCH);
             }
-            synchronized (mLocker) {
-                mLocker.notifyAll();
+        }
+
+        private void enqueueImagePath(String path, int flags) {
+            if (!mIsKeepRunning || path == null || path.trim().isEmpty()) {
+                return;
             }
+            BitmapSize size = mBitmapSize;
+            mDecodeService.enqueue(this, new DecodeService.Key(path, size.width, size.height, mClamp), flags);
+        }
+
+        public void release(Bitmap bitmap) {
+            mDecodeService.release(bitmap);
         }
 
         public void terminate() {
             mIsKeepRunning = false;
-            synchronized (mImagePathQueue) {
-                mImagePathQueue.clear();
-            }
-            synchronized (mLocker) {
-                mLocker.notifyAll();
-            }
+            mDecodeService.unregister(this);
         }
 
         @Override
-        public void run() {
-            while (mIsKeepRunning) {
-                String path = null;
-                synchronized (mImagePathQueue) {
-                     path = mImagePathQueue.poll();
-                }
-                if (path == null) {
-                    synchronized (mLocker) {
-                        try {
-                            mLocker.wait();
-                        } catch (InterruptedException e) {
-                            // Don't wanna see this stack trace
-                        }
-                    }
-                } else {
-                    if (loadBitmapIfNeed()) {
-                        Bitmap bitmap = loadBitmap(path);
-                        if (mOnLoadedListener != null) {
-                            mOnLoadedListener.onBitmapLoaded(bitmap);
-                        }
-                    }
-                }
+        public void onDecoded(DecodeService.Request request, Bitmap bitmap) {
+            OnLoadedListener  listener = mOnLoadedListener;
+            DecodeService.Key key      = request.key;
+            if (!mIsKeepRunning || listener == null || bitmap == null) {
+                // Terminated, detached or undecodable, never hand out null
+                release(bitmap);
+                Tracer.finish(request.id);
+                return;
             }
-        }
-
-        private boolean loadBitmapIfNeed() {
-            return true;
-        }
 
-        private Bitmap loadBitmap(String path) {
-            Bitmap reuseBitmap = null;
-            if (mBitmapWidth != 0 && mBitmapHeight != 0) {
-                BitmapRegionDecoder decoder = null;
-                try {
-                    decoder = BitmapRegionDecoder.newInstance(path, false);
-
-                    Rect    decodeRect   = new Rect();
-                    Options options      = new Options();
-                    float   bitmapWidth  = decoder.getWidth();
-                    float   bitmapHeight = decoder.getHeight();
-                    float   bitmapRatio  = bitmapWidth / bitmapHeight;
-                    float   rectRatio    = (float) mBitmapWidth / (float) mBitmapHeight;
-                    int     sampleSize   = 1;
-                    if (bitmapRatio > rectRatio) {
-                        decodeRect.top    = 0;
-                        decodeRect.bottom = (int) bitmapHeight;
-                        decodeRect.left   = (int) ((bitmapWidth - (bitmapHeight / mBitmapHeight) * mBitmapWidth) * 0.5f);
-                        decodeRect.right  = (int) ((bitmapWidth + (bitmapHeight / mBitmapHeight) * mBitmapWidth) * 0.5f);
-                        sampleSize        = Math.round(bitmapHeight / (float) mBitmapHeight);
-                        sampleSize        = sampleSize < 1 ? 1 : sampleSize;
-                    } else {
-                        decodeRect.top    = (int) ((bitmapHeight - (bitmapWidth / mBitmapWidth) * mBitmapHeight) * 0.5f);
-                        decodeRect.bottom = (int) ((bitmapHeight + (bitmapWidth / mBitmapWidth) * mBitmapHeight) * 0.5f);
-                        decodeRect.left   = 0;
-                        decodeRect.right  = (int) bitmapWidth;
-                        sampleSize        = Math.round(bitmapWidth / (float) mBitmapWidth);
-                        sampleSize        = sampleSize < 1 ? 1 : sampleSize;
-                    }
-                    options.inSampleSize       = sampleSize;
-                    options.inJustDecodeBounds = false;
-                    options.inPreferredConfig  = Bitmap.Config.ARGB_8888;
-                    reuseBitmap = decoder.decodeRegion(decodeRect, options);
-                } catch (IOException e) {
-                    e.printStackTrace();
-                } finally {
-                    if (decoder != null) {
-                        decoder.recycle();
-                    }
+            boolean isStale = !mBitmapSize.matches(key);
+            if ((request.flags & FLAG_PREFETCH) != 0) {
+                // Keep it in the cache for the slide that asks for it,
+                // unless the listener prepares that slide with it now
+                if (isStale || !listener.onBitmapPrefetched(key, bitmap)) {
+                    release(bitmap);
+                }
+                Tracer.finish(request.id);
+            } else if ((request.flags & FLAG_REFRESH) != 0) {
+                if (isStale) {
+                    release(bitmap);
+                    refreshImagePath(key.path);
+                } else {
+                    listener.onBitmapRefreshed(key, bitmap);
                 }
+                Tracer.finish(request.id);
             } else {
-                Options options = new Options();
-                options.inPreferredConfig = Bitmap.Config.ARGB_8888;
-                reuseBitmap = BitmapFactory.decodeFile(path, options);
+                listener.onBitmapLoaded(request.id, key, bitmap);
+                if (isStale) {
+                    refreshImagePath(key.path);
+                }
             }
-
-            return reuseBitmap;
         }
 
         private void setBitmapClamp(Clamp clamp) {
             mClamp = clamp;
         }
 
+        /**
+         * Change the size of future decodes. Requests still pending are moved
+         * to the new size and bitmaps of the old size only this loader asked
+         * for are evicted, those still on screen once they are released.
+         */
         public void setBitmapSize(int width, int height) {
-            mBitmapWidth  = width;
-            mBitmapHeight = height;
+            BitmapSize oldSize = mBitmapSize;
+            if (width == oldSize.width && height == oldSize.height) {
+                return;
+            }
+
+            mBitmapSize = new BitmapSize(width, height);
+            mDecodeService.resize(this, width, height);
+            mDecodeService.evict(this, oldSize.width, oldSize.height);
+            prefetchImagePaths(mPrefetchPaths);
         }
 
     }
@@ -0,0 +1,311 @@
+package com.cobox.coview;
+
+import android.os.Trace;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Switchable trace sections for the scan, decode and draw pipeline.
+ * Each slide is traced as an async slice correlated by its slide id,
+ * split into the {@link Stage}s it goes through.
+ */
+public final class Tracer {
+    public static final String TAG = "Tracer";
+
+    public static final String SLIDE_TRACK = "Slide";
+
+    public enum Stage {
+        Queued     ("Slide:queued"),
+        Decode     ("Slide:decode"),
+        Decoded    ("Slide:decoded"),
+        Transition ("Slide:transition");
+
+        private final String mTrackName;
+
+        private Stage(String trackName) {
+            mTrackName = trackName;
+        }
+
+        public String getTrackName() {
+            return mTrackName;
+        }
+    }
+
+    public interface Sink {
+        void beginSection(String name);
+        void endSection();
+        void beginAsyncSection(String name, int cookie);
+        void endAsyncSection(String name, int cookie);
+    }
+
+    private static volatile boolean             sIsEnabled  = false;
+    private static volatile Sink                sSink       = new SystraceSink();
+    private static final    Map<Integer, Stage> sSlideStage = new ConcurrentHashMap<>();
+
+    private Tracer() {
+    }
+
+    public static void setEnabled(boolean enabled) {
+        sIsEnabled = enabled;
+        if (!enabled) {
+            sSlideStage.clear();
+        }
+    }
+
+    public static boolean isEnabled() {
+        return sIsEnabled;
+    }
+
+    public static void setSink(Sink sink) {
+        sSink = sink == null ? new SystraceSink() : sink;
+        sSlideStage.clear();
+    }
+
+    public static void beginSection(String name) {
+        if (sIsEnabled) {
+            sSink.beginSection(name);
+        }
+    }
+
+    public static void endSection() {
+        if (sIsEnabled) {
+            sSink.endSection();
+        }
+    }
+
+    /**
+     * Move a slide to its next stage, opening the slide slice on the first one
+     */
+    public static void advance(int slideId, Stage stage) {
+        if (!sIsEnabled) {
+            return;
+        }
+
+        Sink  sink     = sSink;
+        Stage previous = sSlideStage.put(slideId, stage);
+        if (previous == stage) {
+            return;
+        }
+        if (previous == null) {
+            sink.beginAsyncSection(SLIDE_TRACK, slideId);
+        } else {
+            sink.endAsyncSection(previous.getTrackName(), slideId);
+        }
+        sink.beginAsyncSection(stage.getTrackName(), slideId);
+    }
+
+    /**
+     * Close the current stage and the slide slice, whatever stage it reached
+     */
+    public static void finish(int slideId) {
+        if (!sIsEnabled) {
+            return;
+        }
+
+        Sink  sink     = sSink;
+        Stage previous = sSlideStage.remove(slideId);
+        if (previous != null) {
+            sink.endAsyncSection(previous.getTrackName(), slideId);
+            sink.endAsyncSection(SLIDE_TRACK, slideId);
+        }
+    }
+
+    /**
+     * Systrace / Perfetto sink. Async slices go through the hidden
+     * Trace.asyncTraceBegin/End, which are only public since API 29.
+     */
+    public static class SystraceSink implements Sink {
+        private static final long DEFAULT_TRACE_TAG_APP = 1L << 12;
+
+        private long   mTraceTag        = DEFAULT_TRACE_TAG_APP;
+        private Method mAsyncTraceBegin = null;
+        private Method mAsyncTraceEnd   = null;
+
+        public SystraceSink() {
+            try {
+                mTraceTag        = Trace.class.getField("TRACE_TAG_APP").getLong(null);
+                mAsyncTraceBegin = Trace.class.getMethod("asyncTraceBegin", long.class, String.class, int.class);
+                mAsyncTraceEnd   = Trace.class.getMethod("asyncTraceEnd", long.class, String.class, int.class);
+            } catch (Exception e) {
+                // Async slices are not available, sections still work
+                mAsyncTraceBegin = null;
+                mAsyncTraceEnd   = null;
+            }
+        }
+
+        @Override
+        public void beginSection(String name) {
+            Trace.beginSection(name);
+        }
+
+        @Override
+        public void endSection() {
+            Trace.endSection();
+        }
+
+        @Override
+        public void beginAsyncSection(String name, int cookie) {
+            invoke(mAsyncTraceBegin, name, cookie);
+        }
+
+        @Override
+        public void endAsyncSection(String name, int cookie) {
+            invoke(mAsyncTraceEnd, name, cookie);
+        }
+
+        private void invoke(Method method, String name, int cookie) {
+            if (method == null) {
+                return;
+            }
+            try {
+                method.invoke(null, mTraceTag, name, cookie);
+            } catch (Exception e) {
+                // Don't wanna break drawing for a trace
+            }
+        }
+    }
+
+    /**
+     * In-memory sink for JVM tests to assert on
+     */
+    public static class RecordingSink implements Sink {
+
+        public enum Type {
+            Begin, End, AsyncBegin, AsyncEnd
+        }
+
+        public static final class Event {
+            public final Type   type;
+            public final String name;
+            public final int    cookie;
+            public final long   threadId;
+            public final long   timeNanos;
+
+            Event(Type type, String name, int cookie) {
+                this.type      = type;
+                this.name      = name;
+                this.cookie    = cookie;
+                this.threadId  = Thread.currentThread().getId();
+                this.timeNanos = System.nanoTime();
+            }
+
+            @Override
+            public String toString() {
+                return type + " " + name + (type == Type.AsyncBegin || type == Type.AsyncEnd ? "#" + cookie : "");
+            }
+        }
+
+        private final List<Event> mEvents = new ArrayList<>();
+
+        @Override
+        public void beginSection(String name) {
+            record(new Event(Type.Begin, name, 0));
+        }
+
+        @Override
+        public void endSection() {
+            record(new Event(Type.End, null, 0));
+        }
+
+        @Override
+        public void beginAsyncSection(String name, int cookie) {
+            record(new Event(Type.AsyncBegin, name, cookie));
+        }
+
+        @Override
+        public void endAsyncSection(String name, int cookie) {
+            record(new Event(Type.AsyncEnd, name, cookie));
+        }
+
+        private void record(Event event) {
+            synchronized (mEvents) {
+                mEvents.add(event);
+            }
+        }
+
+        public List<Event> getEvents() {
+            synchronized (mEvents) {
+                return new ArrayList<>(mEvents);
+            }
+        }
+
+        /**
+         * Names of the async slices begun for one slide, in order
+         */
+        public List<String> getSlideTrack(int slideId) {
+            List<String> track = new ArrayList<>();
+            for (Event event : getEvents()) {
+                if (event.type == Type.AsyncBegin && event.cookie == slideId) {
+                    track.add(event.name);
+                }
+            }
+            return track;
+        }
+
+        /**
+         * Number of sections begun with the given name
+         */
+        public int countSections(String name) {
+            int count = 0;
+            for (Event event : getEvents()) {
+                if (event.type == Type.Begin && event.name.equals(name)) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        /**
+         * Whether every section and async slice begun has been ended
+         */
+        public boolean isBalanced() {
+            Map<String, Integer> openAsync   = new HashMap<>();
+            Map<Long, Integer>   openSection = new HashMap<>();
+            for (Event event : getEvents()) {
+                switch (event.type) {
+                    case Begin:
+                        openSection.put(event.threadId, get(openSection, event.threadId) + 1);
+                        break;
+                    case End:
+                        openSection.put(event.threadId, get(openSection, event.threadId) - 1);
+                        break;
+                    case AsyncBegin:
+                        openAsync.put(event.name + "#" + event.cookie, get(openAsync, event.name + "#" + event.cookie) + 1);
+                        break;
+                    case AsyncEnd:
+                        openAsync.put(event.name + "#" + event.cookie, get(openAsync, event.name + "#" + event.cookie) - 1);
+                        break;
+                    default:
+                        break;
+                }
+            }
+            for (int open : openSection.values()) {
+                if (open != 0) {
+                    return false;
+                }
+            }
+            for (int open : openAsync.values()) {
+                if (open != 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static <K> int get(Map<K, Integer> map, K key) {
+            Integer value = map.get(key);
+            return value == null ? 0 : value;
+        }
+
+        public void clear() {
+            synchronized (mEvents) {
+                mEvents.clear();
+            }
+        }
+    }
+}
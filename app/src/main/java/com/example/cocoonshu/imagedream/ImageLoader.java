@@ -6,6 +6,8 @@ import android.database.Cursor;
 import android.os.AsyncTask;
 import android.provider.MediaStore;
 
+import com.cobox.coview.Tracer;
+
 import java.util.ArrayList;
 import java.util.List;
 
@@ -18,7 +20,8 @@ public class ImageLoader extends AsyncTask<Void, Float, Void>{
 
     private Context                 mContext                 = null;
     private OnLoadCompletedListener mOnLoadCompletedListener = null;
-    private boolean                 mIsQuit                  = false;
+    private volatile boolean        mIsQuit                  = false;
+    private boolean                 mIsDirty                 = false;
     private Object                  mLocker                  = new Object();
 
     public static interface OnLoadCompletedListener {
@@ -44,6 +47,7 @@ public class ImageLoader extends AsyncTask<Void, Float, Void>{
 
     public void notifyDirty() {
         synchronized (mLocker) {
+            mIsDirty = true;
             mLocker.notifyAll();
         }
     }
@@ -58,7 +62,11 @@ public class ImageLoader extends AsyncTask<Void, Float, Void>{
 
             try {
                 synchronized (mLocker) {
-                    mLocker.wait();
+                    // A change during the scan must not be lost
+                    while (!mIsDirty && !mIsQuit) {
+                        mLocker.wait();
+                    }
+                    mIsDirty = false;
                 }
             } catch (InterruptedException e) {
                 e.printStackTrace();
@@ -69,6 +77,18 @@ public class ImageLoader extends AsyncTask<Void, Float, Void>{
     }
 
     private List<String> scanMediaProvider() {
+        Tracer.beginSection("ImageLoader.scanMediaProvider");
+        try {
+            return queryMediaProvider();
+        } finally {
+            Tracer.endSection();
+        }
+    }
+
+    /**
+     * Paths of the photos in the index, newest first
+     */
+    protected List<String> queryMediaProvider() {
         if (mContext == null) {
             return new ArrayList<>();
         }
@@ -13,18 +13,20 @@ import android.view.MenuItem;
 
 import com.cobox.coview.SlidingImage;
 import com.cobox.coview.SlidingImage.BitmapLoader;
+import com.cobox.coview.Tracer;
 
 import java.util.List;
 
 public class MainActivity extends AppCompatActivity {
 
+    private static final int PREFETCH_COUNT = 2;
+
     private FloatingActionButton  mFabAction       = null;
     private MediaProviderObserver mContentObserver = null;
     private SlidingImage          mSlidingImage    = null;
     private ImageLoader           mContentLoader   = null;
     private BitmapLoader          mBitmapLoader    = null;
-    private List<String>          mImagePaths      = null;
-    private int                   mImageCounter    = 0;
+    private Playlist              mPlaylist        = null;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -51,8 +53,9 @@ public class MainActivity extends AppCompatActivity {
     protected void onDestroy() {
         super.onDestroy();
         mContentLoader.stop();
-        mBitmapLoader.terminate();
+        // Hand the drawers' bitmaps back before the loader leaves the service
         mSlidingImage.setBitmapLoader(null);
+        mBitmapLoader.terminate();
     }
 
     private void initializeActionBar() {
@@ -61,8 +64,10 @@ public class MainActivity extends AppCompatActivity {
     }
 
     private void initializeComponents() {
+        Tracer.setEnabled(BuildConfig.DEBUG);
         mContentLoader = new ImageLoader(getApplicationContext());
         mBitmapLoader  = new BitmapLoader(getApplicationContext());
+        mPlaylist      = new Playlist(Playlist.Order.Sequential, System.currentTimeMillis());
         mFabAction     = (FloatingActionButton) findViewById(R.id.fab);
         mSlidingImage  = (SlidingImage) findViewById(R.id.SlidingImage);
         mContentLoader.start();
@@ -74,7 +79,7 @@ public class MainActivity extends AppCompatActivity {
         mFabAction.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View view) {
-                if (mImagePaths == null || mImagePaths.isEmpty()) {
+                if (mPlaylist.isEmpty()) {
                     Snackbar.make(view, "No photo found", Snackbar.LENGTH_LONG).show();
                 } else {
                     nextImage();
@@ -85,11 +90,11 @@ public class MainActivity extends AppCompatActivity {
         mContentLoader.setOnLoadCompletedListener(new ImageLoader.OnLoadCompletedListener() {
             @Override
             public void OnLoadCompleted(List<String> imagePaths) {
-                int imageCount = imagePaths == null ? 0 : imagePaths.size();
-                mImageCounter = mImageCounter > imageCount ? imageCount - 1 : mImageCounter;
-                mImageCounter = mImageCounter < 0 ? 0 : mImageCounter;
-                mImagePaths   = imagePaths;
-                nextImage();
+                mPlaylist.update(imagePaths);
+                if (mPlaylist.getCurrent() == null) {
+                    // Nothing on screen yet, or the current photo was deleted
+                    nextImage();
+                }
             }
         });
     }
@@ -97,6 +102,18 @@ public class MainActivity extends AppCompatActivity {
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         getMenuInflater().inflate(R.menu.menu_main, menu);
+        switch (mPlaylist.getOrder()) {
+            case Shuffle:
+                menu.findItem(R.id.action_order_shuffle).setChecked(true);
+                break;
+            case WeightedRecent:
+                menu.findItem(R.id.action_order_weighted_recent).setChecked(true);
+                break;
+            case Sequential:
+            default:
+                menu.findItem(R.id.action_order_sequential).setChecked(true);
+                break;
+        }
         return true;
     }
 
@@ -105,10 +122,26 @@ public class MainActivity extends AppCompatActivity {
         int id = item.getItemId();
         if (id == R.id.action_settings) {
             return true;
+        } else if (id == R.id.action_order_sequential) {
+            setPlaylistOrder(item, Playlist.Order.Sequential);
+            return true;
+        } else if (id == R.id.action_order_shuffle) {
+            setPlaylistOrder(item, Playlist.Order.Shuffle);
+            return true;
+        } else if (id == R.id.action_order_weighted_recent) {
+            setPlaylistOrder(item, Playlist.Order.WeightedRecent);
+            return true;
         }
         return super.onOptionsItemSelected(item);
     }
 
+    private void setPlaylistOrder(MenuItem item, Playlist.Order order) {
+        item.setChecked(true);
+        mPlaylist.setOrder(order);
+        // The slides decoded ahead belong to the old order
+        mSlidingImage.setUpcomingImages(mPlaylist.peek(PREFETCH_COUNT));
+    }
+
     private void registerMediaProviderObserver() {
         mContentObserver = new MediaProviderObserver();
         getContentResolver().registerContentObserver(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, true, mContentObserver);
@@ -126,12 +159,10 @@ public class MainActivity extends AppCompatActivity {
             return;
         }
 
-        List<String> imagePaths = mImagePaths;
-        int          imageCount = imagePaths.size();
-        if (mImageCounter < imageCount) {
-            String imagePath = imagePaths.get(mImageCounter);
-            mImageCounter++;
+        String imagePath = mPlaylist.next();
+        if (imagePath != null) {
             mSlidingImage.setNextImageBitmap(imagePath);
+            mSlidingImage.setUpcomingImages(mPlaylist.peek(PREFETCH_COUNT));
         }
     }
 
@@ -0,0 +1,296 @@
+package com.example.cocoonshu.imagedream;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Slide order over the MediaStore index. Orders are generated lazily from a
+ * seed, so the playlist keeps a cursor, one bit per slide and the window of
+ * recently shown slides instead of a shuffled copy of the path list.
+ * The recent window spans round boundaries, random orders never show a
+ * slide again within half the index.
+ */
+public class Playlist {
+
+    public static final int FEISTEL_ROUNDS = 4;
+    public static final int RECENT_WEIGHT  = 2;
+
+    public enum Order {
+        /** Index order, newest photo first */
+        Sequential,
+        /** Random order without repeats until every slide was shown */
+        Shuffle,
+        /** Random order favouring recent photos, no repeats within half the index */
+        WeightedRecent
+    }
+
+    private Order        mOrder       = Order.Sequential;
+    private List<String> mImagePaths  = Collections.emptyList();
+    private String       mCurrentPath = null;
+    private long         mSeed        = 0;
+    private Cursor       mCursor      = new Cursor();
+
+    /**
+     * Where the playlist stands in its order, {@link #peek(int)} walks a copy
+     */
+    private static final class Cursor {
+        /** Slides shown in this shuffle round */
+        BitSet              played       = new BitSet();
+        /** Slides shown within the recent window, across rounds */
+        BitSet              recent       = new BitSet();
+        ArrayDeque<Integer> recentQueue  = new ArrayDeque<>();
+        int                 currentIndex = -1;
+        int                 round        = 0;
+        int                 step         = 0;
+
+        Cursor copy() {
+            Cursor copy = new Cursor();
+            copy.played       = (BitSet) played.clone();
+            copy.recent       = (BitSet) recent.clone();
+            copy.recentQueue  = new ArrayDeque<>(recentQueue);
+            copy.currentIndex = currentIndex;
+            copy.round        = round;
+            copy.step         = step;
+            return copy;
+        }
+    }
+
+    public Playlist(Order order, long seed) {
+        mOrder = order == null ? Order.Sequential : order;
+        mSeed  = seed;
+    }
+
+    /**
+     * Switch order, starting a new round of it from the current slide
+     */
+    public synchronized void setOrder(Order order) {
+        if (order == null || order == mOrder) {
+            return;
+        }
+        mOrder = order;
+        mCursor.played.clear();
+        mCursor.step = 0;
+    }
+
+    public synchronized Order getOrder() {
+        return mOrder;
+    }
+
+    public synchronized boolean isEmpty() {
+        return mImagePaths.isEmpty();
+    }
+
+    public synchronized String getCurrent() {
+        return mCurrentPath;
+    }
+
+    /**
+     * Take a new scan of the index, keeping the place of the current slide,
+     * the slides already shown in this round and the recent window
+     */
+    public synchronized void update(List<String> imagePaths) {
+        List<String> oldPaths = mImagePaths;
+        List<String> newPaths = imagePaths == null ? Collections.<String>emptyList() : imagePaths;
+        if (oldPaths == newPaths) {
+            return;
+        }
+
+        Map<String, Integer> newIndices = new HashMap<>(newPaths.size() * 2);
+        for (int i = 0; i < newPaths.size(); i++) {
+            newIndices.put(newPaths.get(i), i);
+        }
+
+        Cursor cursor = mCursor;
+        BitSet played = new BitSet(newPaths.size());
+        for (int i = cursor.played.nextSetBit(0); i >= 0; i = cursor.played.nextSetBit(i + 1)) {
+            Integer newIndex = i < oldPaths.size() ? newIndices.get(oldPaths.get(i)) : null;
+            if (newIndex != null) {
+                played.set(newIndex);
+            }
+        }
+
+        ArrayDeque<Integer> recentQueue = new ArrayDeque<>();
+        BitSet              recent      = new BitSet(newPaths.size());
+        for (int oldIndex : cursor.recentQueue) {
+            Integer newIndex = oldIndex < oldPaths.size() ? newIndices.get(oldPaths.get(oldIndex)) : null;
+            if (newIndex != null && !recent.get(newIndex)) {
+                recent.set(newIndex);
+                recentQueue.addLast(newIndex);
+            }
+        }
+        while (recentQueue.size() > getRecentWindow(newPaths.size())) {
+            recent.clear(recentQueue.pollFirst());
+        }
+
+        Integer currentIndex = mCurrentPath == null ? null : newIndices.get(mCurrentPath);
+        if (currentIndex != null) {
+            cursor.currentIndex = currentIndex;
+        } else {
+            // Current slide is gone, continue with whatever moved into its place
+            cursor.currentIndex = Math.max(-1, Math.min(cursor.currentIndex, newPaths.size()) - 1);
+            mCurrentPath        = null;
+        }
+
+        mImagePaths        = newPaths;
+        cursor.played      = played;
+        cursor.recent      = recent;
+        cursor.recentQueue = recentQueue;
+        cursor.step        = 0;
+    }
+
+    /**
+     * Advance to the next slide
+     * @return the path of the next slide, or null if the index is empty
+     */
+    public synchronized String next() {
+        if (mImagePaths.isEmpty()) {
+            return null;
+        }
+        mCurrentPath = mImagePaths.get(advance());
+        return mCurrentPath;
+    }
+
+    /**
+     * The slides {@link #next()} will return, without advancing
+     */
+    public synchronized List<String> peek(int count) {
+        List<String> upcoming = new ArrayList<>(Math.max(count, 0));
+        if (mImagePaths.isEmpty() || count <= 0) {
+            return upcoming;
+        }
+
+        Cursor saved = mCursor;
+        mCursor = saved.copy();
+        try {
+            while (upcoming.size() < count) {
+                upcoming.add(mImagePaths.get(advance()));
+            }
+        } finally {
+            mCursor = saved;
+        }
+        return upcoming;
+    }
+
+    /**
+     * Move the cursor to the next slide, starting a new round when this one is over
+     */
+    private int advance() {
+        int imageCount = mImagePaths.size();
+        int index      = nextIndex(imageCount);
+        if (index < 0) {
+            mCursor.played.clear();
+            mCursor.step = 0;
+            mCursor.round++;
+            index = nextIndex(imageCount);
+        }
+
+        markShown(index, imageCount);
+        mCursor.currentIndex = index;
+        return index;
+    }
+
+    private void markShown(int index, int imageCount) {
+        Cursor cursor = mCursor;
+        cursor.played.set(index);
+        if (cursor.recent.get(index)) {
+            cursor.recentQueue.remove(Integer.valueOf(index));
+        }
+        cursor.recent.set(index);
+        cursor.recentQueue.addLast(index);
+        while (cursor.recentQueue.size() > getRecentWindow(imageCount)) {
+            cursor.recent.clear(cursor.recentQueue.pollFirst());
+        }
+    }
+
+    private static int getRecentWindow(int imageCount) {
+        return imageCount / 2;
+    }
+
+    /**
+     * @return the next index of this round, or -1 when the round is over
+     */
+    private int nextIndex(int imageCount) {
+        switch (mOrder) {
+            case Shuffle:
+                return nextShuffleIndex(imageCount);
+            case WeightedRecent:
+                return nextWeightedIndex(imageCount);
+            case Sequential:
+            default:
+                return nextSequentialIndex(imageCount);
+        }
+    }
+
+    private int nextSequentialIndex(int imageCount) {
+        return (mCursor.currentIndex + 1) % imageCount;
+    }
+
+    /**
+     * Walk the round's permutation twice. The first pass skips slides still
+     * in the recent window, the second one picks them up once they are not.
+     */
+    private int nextShuffleIndex(int imageCount) {
+        Cursor cursor = mCursor;
+        long   key    = hash(mSeed, cursor.round, imageCount);
+        while (cursor.step < 2 * imageCount) {
+            boolean isFirstPass = cursor.step < imageCount;
+            int     index       = permute(cursor.step % imageCount, imageCount, key);
+            cursor.step++;
+            if (!cursor.played.get(index) && !(isFirstPass && cursor.recent.get(index))) {
+                return index;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * A sliding window rather than rounds: any slide out of the recent
+     * window can come up, the newest ones more often
+     */
+    private int nextWeightedIndex(int imageCount) {
+        Cursor cursor = mCursor;
+        while (true) {
+            long   random = hash(mSeed, cursor.round, cursor.step++);
+            double unit   = (random >>> 11) * (1.0 / (1L << 53));
+            int    index  = (int) (imageCount * Math.pow(unit, RECENT_WEIGHT));
+            index = index >= imageCount ? imageCount - 1 : index;
+            if (!cursor.recent.get(index)) {
+                return index;
+            }
+        }
+    }
+
+    /**
+     * Keyed bijection of [0, size) built from a balanced Feistel network
+     * over the next even power of two, cycle-walking values out of range
+     */
+    static int permute(int index, int size, long key) {
+        int bits     = 32 - Integer.numberOfLeadingZeros(Math.max(size - 1, 1));
+        int halfBits = (bits + 1) / 2;
+        int halfMask = (1 << halfBits) - 1;
+        int value    = index;
+        do {
+            int left  = value >>> halfBits;
+            int right = value & halfMask;
+            for (int round = 0; round < FEISTEL_ROUNDS; round++) {
+                int mixed = left ^ ((int) hash(key, round, right) & halfMask);
+                left  = right;
+                right = mixed;
+            }
+            value = (left << halfBits) | right;
+        } while (value >= size);
+        return value;
+    }
+
+    private static long hash(long seed, long a, long b) {
+        long value = seed ^ (a * 0x9E3779B97F4A7C15L) ^ (b * 0xC2B2AE3D27D4EB4FL);
+        value = (value ^ (value >>> 30)) * 0xBF58476D1CE4E5B9L;
+        value = (value ^ (value >>> 27)) * 0x94D049BB133111EBL;
+        return value ^ (value >>> 31);
+    }
+}
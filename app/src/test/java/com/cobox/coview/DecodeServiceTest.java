@@ -0,0 +1,144 @@
+package com.cobox.coview;
+
+import android.graphics.Bitmap;
+
+import com.example.cocoonshu.imagedream.BuildConfig;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class DecodeServiceTest {
+
+    private static final long DRAIN_TIMEOUT = 10000;
+
+    @Test
+    public void throwingClientDoesntPinItsBitmaps() throws InterruptedException {
+        DecodeService        service   = newService(new AtomicInteger());
+        final Semaphore      delivered = new Semaphore(0);
+        DecodeService.Key    key       = new DecodeService.Key("slide", 64, 48, SlidingImage.Clamp.Crop);
+        DecodeService.Client client    = new DecodeService.Client() {
+            @Override
+            public void onDecoded(DecodeService.Request request, Bitmap bitmap) {
+                delivered.release();
+                throw new IllegalStateException("broken client");
+            }
+        };
+
+        service.register(client);
+        try {
+            // A decode, then a cache hit of the same key
+            service.enqueue(client, key, 0);
+            assertTrue(delivered.tryAcquire(DRAIN_TIMEOUT, TimeUnit.MILLISECONDS));
+            service.enqueue(client, key, 0);
+            assertTrue(delivered.tryAcquire(DRAIN_TIMEOUT, TimeUnit.MILLISECONDS));
+            waitForReleases(service);
+            assertEquals(0, service.getReferencedCount());
+        } finally {
+            service.unregister(client);
+        }
+    }
+
+    @Test
+    public void evictedBitmapOnScreenIsDroppedOnRelease() throws InterruptedException {
+        AtomicInteger               decodeCount = new AtomicInteger();
+        DecodeService               service     = newService(decodeCount);
+        final BlockingQueue<Bitmap> delivered   = new LinkedBlockingQueue<>();
+        DecodeService.Key           oldKey      = new DecodeService.Key("slide", 64, 48, SlidingImage.Clamp.Crop);
+        DecodeService.Client        client      = new DecodeService.Client() {
+            @Override
+            public void onDecoded(DecodeService.Request request, Bitmap bitmap) {
+                delivered.add(bitmap);
+            }
+        };
+
+        service.register(client);
+        try {
+            // Shown at the old size when the view is resized, released after the eviction
+            service.enqueue(client, oldKey, 0);
+            Bitmap shown = delivered.poll(DRAIN_TIMEOUT, TimeUnit.MILLISECONDS);
+            service.evict(client, oldKey.width, oldKey.height);
+            service.release(shown);
+
+            service.enqueue(client, oldKey, 0);
+            service.release(delivered.poll(DRAIN_TIMEOUT, TimeUnit.MILLISECONDS));
+            assertEquals("stale size kept in the cache", 2, decodeCount.get());
+        } finally {
+            service.unregister(client);
+        }
+    }
+
+    @Test
+    public void evictedBitmapAskedForAgainIsKept() throws InterruptedException {
+        AtomicInteger               decodeCount = new AtomicInteger();
+        DecodeService               service     = newService(decodeCount);
+        final BlockingQueue<Bitmap> delivered   = new LinkedBlockingQueue<>();
+        DecodeService.Key           key         = new DecodeService.Key("slide", 64, 48, SlidingImage.Clamp.Crop);
+        DecodeService.Client        client      = new DecodeService.Client() {
+            @Override
+            public void onDecoded(DecodeService.Request request, Bitmap bitmap) {
+                delivered.add(bitmap);
+            }
+        };
+
+        service.register(client);
+        try {
+            // Resized away and back before the slide was released
+            service.enqueue(client, key, 0);
+            Bitmap shown = delivered.poll(DRAIN_TIMEOUT, TimeUnit.MILLISECONDS);
+            service.evict(client, key.width, key.height);
+            service.enqueue(client, key, 0);
+            Bitmap again = delivered.poll(DRAIN_TIMEOUT, TimeUnit.MILLISECONDS);
+            service.release(shown);
+            service.release(again);
+
+            service.enqueue(client, key, 0);
+            service.release(delivered.poll(DRAIN_TIMEOUT, TimeUnit.MILLISECONDS));
+            assertEquals(1, decodeCount.get());
+        } finally {
+            service.unregister(client);
+        }
+    }
+
+    private static DecodeService newService(final AtomicInteger decodeCount) {
+        return new DecodeService(1, 8L * 1024 * 1024, new DecodeService.DecoderFactory() {
+            @Override
+            public DecodeService.Decoder newDecoder() {
+                return new DecodeService.Decoder() {
+                    @Override
+                    public Bitmap decode(DecodeService.Key key) {
+                        decodeCount.incrementAndGet();
+                        return Bitmap.createBitmap(key.width, key.height, Bitmap.Config.ARGB_8888);
+                    }
+
+                    @Override
+                    public void close() {
+                        // Nothing opened
+                    }
+                };
+            }
+        });
+    }
+
+    /**
+     * The worker releases right after the client threw, give it the time to
+     */
+    private static void waitForReleases(DecodeService service) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + DRAIN_TIMEOUT;
+        while (service.getReferencedCount() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+    }
+}
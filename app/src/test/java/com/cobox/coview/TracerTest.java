@@ -0,0 +1,165 @@
+package com.cobox.coview;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.os.SystemClock;
+
+import com.cobox.coview.SlidingImage.BitmapLoader;
+import com.cobox.coview.Tracer.RecordingSink;
+import com.example.cocoonshu.imagedream.BuildConfig;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class TracerTest {
+
+    private static final long         DRAIN_TIMEOUT = 10000;
+    private static final List<String> SLIDE_TRACK   = Arrays.asList(
+            Tracer.SLIDE_TRACK,
+            Tracer.Stage.Queued.getTrackName(),
+            Tracer.Stage.Decode.getTrackName(),
+            Tracer.Stage.Decoded.getTrackName(),
+            Tracer.Stage.Transition.getTrackName());
+
+    private RecordingSink mSink = null;
+
+    @Before
+    public void setUp() {
+        mSink = new RecordingSink();
+        Tracer.setSink(mSink);
+        Tracer.setEnabled(true);
+    }
+
+    @After
+    public void tearDown() {
+        Tracer.setEnabled(false);
+        Tracer.setSink(null);
+    }
+
+    @Test
+    public void stagesOpenInOrderAndCloseOnFinish() {
+        for (Tracer.Stage stage : Tracer.Stage.values()) {
+            Tracer.advance(7, stage);
+        }
+        Tracer.advance(7, Tracer.Stage.Transition);
+        Tracer.finish(7);
+        Tracer.finish(7);
+
+        assertEquals(SLIDE_TRACK, mSink.getSlideTrack(7));
+        assertTrue(mSink.isBalanced());
+    }
+
+    @Test
+    public void unfinishedSlideIsUnbalanced() {
+        Tracer.advance(8, Tracer.Stage.Queued);
+        Tracer.beginSection("section");
+        Tracer.endSection();
+
+        assertFalse(mSink.isBalanced());
+        Tracer.finish(8);
+        assertTrue(mSink.isBalanced());
+    }
+
+    @Test
+    public void disabledTracerRecordsNothing() {
+        Tracer.setEnabled(false);
+        Tracer.beginSection("section");
+        Tracer.advance(9, Tracer.Stage.Queued);
+        Tracer.finish(9);
+        Tracer.endSection();
+
+        assertTrue(mSink.getEvents().isEmpty());
+    }
+
+    @Test
+    public void everySlideIsTracedFromQueuedToTransitionEnd() throws InterruptedException {
+        DecodeService service = new DecodeService(2, 8L * 1024 * 1024, new DecodeService.DecoderFactory() {
+            @Override
+            public DecodeService.Decoder newDecoder() {
+                return new DecodeService.Decoder() {
+                    @Override
+                    public Bitmap decode(DecodeService.Key key) {
+                        return Bitmap.createBitmap(key.width, key.height, Bitmap.Config.ARGB_8888);
+                    }
+
+                    @Override
+                    public void close() {
+                        // Nothing opened
+                    }
+                };
+            }
+        });
+        SlidingImage view   = new SlidingImage(RuntimeEnvironment.application);
+        BitmapLoader loader = new BitmapLoader(RuntimeEnvironment.application, service);
+        Canvas       canvas = new Canvas(Bitmap.createBitmap(320, 480, Bitmap.Config.ARGB_8888));
+        view.layout(0, 0, 320, 480);
+        view.setDuration(100);
+        loader.start();
+        view.setBitmapLoader(loader);
+        try {
+            for (int i = 0; i < 3; i++) {
+                view.setNextImageBitmap("slide-" + i);
+            }
+            waitForAsyncSections(Tracer.Stage.Transition.getTrackName(), 3);
+
+            view.draw(canvas);
+            SystemClock.sleep(200);
+            view.draw(canvas);
+        } finally {
+            view.setBitmapLoader(null);
+            loader.terminate();
+        }
+
+        Set<Integer> slideIds = getSlideIds();
+        assertEquals(3, slideIds.size());
+        for (int slideId : slideIds) {
+            assertEquals("slide " + slideId, SLIDE_TRACK, mSink.getSlideTrack(slideId));
+        }
+        assertEquals(2, mSink.countSections("SlidingImage.onDraw"));
+        assertEquals(3, mSink.countSections("DecodeService.decode"));
+        assertTrue(mSink.isBalanced());
+    }
+
+    private Set<Integer> getSlideIds() {
+        Set<Integer> slideIds = new LinkedHashSet<>();
+        for (RecordingSink.Event event : mSink.getEvents()) {
+            if (event.type == RecordingSink.Type.AsyncBegin && Tracer.SLIDE_TRACK.equals(event.name)) {
+                slideIds.add(event.cookie);
+            }
+        }
+        return slideIds;
+    }
+
+    private void waitForAsyncSections(String name, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + DRAIN_TIMEOUT;
+        while (true) {
+            int begunCount = 0;
+            for (RecordingSink.Event event : mSink.getEvents()) {
+                if (event.type == RecordingSink.Type.AsyncBegin && name.equals(event.name)) {
+                    begunCount++;
+                }
+            }
+            if (begunCount >= count) {
+                return;
+            }
+            assertTrue("timed out waiting for " + count + " " + name, System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+}
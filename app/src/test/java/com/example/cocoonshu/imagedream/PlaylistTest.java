@@ -0,0 +1,180 @@
+package com.example.cocoonshu.imagedream;
+
+import com.example.cocoonshu.imagedream.Playlist.Order;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PlaylistTest {
+
+    private static final int[]  SIZES = {1, 2, 3, 10, 37, 100};
+    private static final long[] SEEDS = {1, 7, 42, 20161103};
+
+    @Test
+    public void permuteIsABijection() {
+        for (int size = 1; size <= 300; size++) {
+            for (long seed : SEEDS) {
+                Set<Integer> values = new HashSet<>();
+                for (int i = 0; i < size; i++) {
+                    int value = Playlist.permute(i, size, seed);
+                    assertTrue("out of range " + value + " of " + size, value >= 0 && value < size);
+                    values.add(value);
+                }
+                assertEquals("size " + size + ", seed " + seed, size, values.size());
+            }
+        }
+    }
+
+    @Test
+    public void shuffleShowsEverySlideOncePerRound() {
+        for (int size : SIZES) {
+            for (long seed : SEEDS) {
+                Playlist playlist = newPlaylist(Order.Shuffle, seed, size);
+                for (int round = 0; round < 4; round++) {
+                    Set<String> shown = new HashSet<>();
+                    for (int i = 0; i < size; i++) {
+                        shown.add(playlist.next());
+                    }
+                    assertEquals("size " + size + ", seed " + seed + ", round " + round, size, shown.size());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void randomOrdersDontRepeatWithinHalfTheIndex() {
+        for (Order order : new Order[] {Order.Shuffle, Order.WeightedRecent}) {
+            for (int size : SIZES) {
+                for (long seed : SEEDS) {
+                    Playlist     playlist = newPlaylist(order, seed, size);
+                    List<String> shown    = new ArrayList<>();
+                    for (int i = 0; i < size * 6; i++) {
+                        shown.add(playlist.next());
+                    }
+                    assertNoRepeatWithin(order + ", size " + size + ", seed " + seed, shown, size / 2);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void weightedRecentDoesntRepeatAcrossRounds() {
+        Playlist playlist = newPlaylist(Order.WeightedRecent, 7, 10);
+        String   previous = playlist.next();
+        for (int i = 0; i < 1000; i++) {
+            String current = playlist.next();
+            assertNotEquals("slide " + i, previous, current);
+            previous = current;
+        }
+    }
+
+    @Test
+    public void peekMatchesNext() {
+        for (Order order : Order.values()) {
+            for (int size : SIZES) {
+                Playlist playlist = newPlaylist(order, 7, size);
+                for (int i = 0; i < size * 3; i++) {
+                    List<String> upcoming = playlist.peek(3);
+                    List<String> next     = new ArrayList<>();
+                    for (int j = 0; j < 3; j++) {
+                        next.add(playlist.next());
+                        // Peeking in between mustn't move the cursor either
+                        playlist.peek(2);
+                    }
+                    assertEquals(order + ", size " + size + ", step " + i, upcoming, next);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void updateKeepsCurrentAndShownSlides() {
+        Playlist    playlist = newPlaylist(Order.Shuffle, 42, 20);
+        Set<String> shown    = new HashSet<>();
+        for (int i = 0; i < 8; i++) {
+            shown.add(playlist.next());
+        }
+        String current = playlist.getCurrent();
+
+        // Three new photos at the head, two not shown yet deleted
+        List<String> paths = new ArrayList<>();
+        paths.add("new0");
+        paths.add("new1");
+        paths.add("new2");
+        int deleted = 0;
+        for (String path : newPaths(20)) {
+            if (!shown.contains(path) && deleted < 2) {
+                deleted++;
+            } else {
+                paths.add(path);
+            }
+        }
+        playlist.update(paths);
+        assertEquals(current, playlist.getCurrent());
+
+        Set<String> rest = new HashSet<>();
+        for (int i = 0; i < paths.size() - shown.size(); i++) {
+            String path = playlist.next();
+            assertFalse("shown again in the same round " + path, shown.contains(path));
+            rest.add(path);
+        }
+        assertEquals(paths.size() - shown.size(), rest.size());
+    }
+
+    @Test
+    public void updateWithoutCurrentContinuesInItsPlace() {
+        Playlist playlist = newPlaylist(Order.Sequential, 1, 5);
+        assertEquals("p0", playlist.next());
+        assertEquals("p1", playlist.next());
+
+        List<String> paths = newPaths(5);
+        paths.remove("p1");
+        playlist.update(paths);
+        assertNull(playlist.getCurrent());
+        assertEquals("p2", playlist.next());
+    }
+
+    @Test
+    public void emptyPlaylistHasNothingToShow() {
+        Playlist playlist = new Playlist(Order.Shuffle, 1);
+        assertTrue(playlist.isEmpty());
+        assertNull(playlist.next());
+        assertTrue(playlist.peek(3).isEmpty());
+
+        playlist.update(newPaths(3));
+        playlist.update(new ArrayList<String>());
+        assertNull(playlist.next());
+    }
+
+    private static Playlist newPlaylist(Order order, long seed, int size) {
+        Playlist playlist = new Playlist(order, seed);
+        playlist.update(newPaths(size));
+        return playlist;
+    }
+
+    private static List<String> newPaths(int size) {
+        List<String> paths = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            paths.add("p" + i);
+        }
+        return paths;
+    }
+
+    private static void assertNoRepeatWithin(String message, List<String> shown, int window) {
+        for (int i = 0; i < shown.size(); i++) {
+            for (int j = Math.max(0, i - window); j < i; j++) {
+                assertNotEquals(message + ", slides " + j + " and " + i, shown.get(j), shown.get(i));
+            }
+        }
+    }
+}
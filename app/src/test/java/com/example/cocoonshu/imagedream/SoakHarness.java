@@ -0,0 +1,558 @@
+package com.example.cocoonshu.imagedream;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.os.SystemClock;
+
+import com.cobox.coview.DecodeService;
+import com.cobox.coview.SlidingImage;
+import com.cobox.coview.SlidingImage.BitmapLoader;
+import com.cobox.coview.Tracer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+
+/**
+ * Soak harness for the loader/drawer pipeline. Feeds synthetic images of
+ * random sizes through a private {@link DecodeService}, a {@link BitmapLoader}
+ * and a {@link SlidingImage}, while randomly resizing the view, terminating
+ * the loaders and rescanning the index through a real {@link ImageLoader}.
+ * <p>
+ * Run it on the thread that owns the view, from an instrumentation or
+ * Robolectric test. Each slide advances the animation clock by one
+ * transition through {@link SystemClock#sleep(long)}.
+ */
+public class SoakHarness {
+    public static final String TAG = "SoakHarness";
+
+    private static final String SYNTHETIC_SCHEME = "synthetic:";
+    private static final long   DRAIN_TIMEOUT    = 30000;
+
+    public static class Config {
+        public int     imageCount       = 2000;
+        public int     slideCount       = 5000;
+        public int     minImageSize     = 64;
+        public int     maxImageSize     = 2048;
+        public int     minViewSize      = 240;
+        public int     maxViewSize      = 1920;
+        public int     maxPending       = 8;
+        public int     prefetchCount    = 2;
+        public long    transitionMillis = 16;
+        public float   resizeRate       = 0.02f;
+        public float   terminateRate    = 0.005f;
+        public float   rescanRate       = 0.01f;
+        public float   failureRate      = 0.01f;
+        public int     workerCount      = 2;
+        public long    cacheBytes       = 32L * 1024 * 1024;
+        public boolean prerender        = false;
+        public long    prerenderBudget  = 32L * 1024 * 1024;
+        public long    seed             = 1;
+    }
+
+    /**
+     * What one run measured. Latencies are from queued to decoded, in milliseconds.
+     */
+    public static class Report {
+        public long   slides        = 0;
+        public long   decodes       = 0;
+        public long   elapsedMillis = 0;
+        public double throughput    = 0;
+        public double p50Latency    = 0;
+        public double p95Latency    = 0;
+        public double p99Latency    = 0;
+        public long   peakHeapBytes = 0;
+        public long   scans         = 0;
+        public int    leakedBitmaps = 0;
+        public int    stalls        = 0;
+
+        /**
+         * @return one line per metric that regressed beyond {@code tolerance}
+         *         (0.2 allows 20%) against {@code baseline}
+         */
+        public List<String> findRegressions(Report baseline, float tolerance) {
+            List<String> regressions = new ArrayList<>();
+            if (throughput < baseline.throughput * (1.0f - tolerance)) {
+                regressions.add("throughput " + throughput + "/s < baseline " + baseline.throughput + "/s");
+            }
+            if (p99Latency > baseline.p99Latency * (1.0f + tolerance)) {
+                regressions.add("p99 latency " + p99Latency + "ms > baseline " + baseline.p99Latency + "ms");
+            }
+            if (peakHeapBytes > baseline.peakHeapBytes * (1.0f + tolerance)) {
+                regressions.add("peak heap " + peakHeapBytes + "B > baseline " + baseline.peakHeapBytes + "B");
+            }
+            if (leakedBitmaps > baseline.leakedBitmaps) {
+                regressions.add("leaked bitmaps " + leakedBitmaps + " > baseline " + baseline.leakedBitmaps);
+            }
+            if (stalls > baseline.stalls) {
+                regressions.add("stalls " + stalls + " > baseline " + baseline.stalls);
+            }
+            return regressions;
+        }
+
+        public void store(File file) throws IOException {
+            Properties properties = new Properties();
+            properties.setProperty("slides", String.valueOf(slides));
+            properties.setProperty("decodes", String.valueOf(decodes));
+            properties.setProperty("elapsedMillis", String.valueOf(elapsedMillis));
+            properties.setProperty("throughput", String.valueOf(throughput));
+            properties.setProperty("p50Latency", String.valueOf(p50Latency));
+            properties.setProperty("p95Latency", String.valueOf(p95Latency));
+            properties.setProperty("p99Latency", String.valueOf(p99Latency));
+            properties.setProperty("peakHeapBytes", String.valueOf(peakHeapBytes));
+            properties.setProperty("scans", String.valueOf(scans));
+            properties.setProperty("leakedBitmaps", String.valueOf(leakedBitmaps));
+            properties.setProperty("stalls", String.valueOf(stalls));
+
+            OutputStream stream = new FileOutputStream(file);
+            try {
+                properties.store(stream, TAG + " baseline");
+            } finally {
+                stream.close();
+            }
+        }
+
+        public static Report load(File file) throws IOException {
+            Properties  properties = new Properties();
+            InputStream stream     = new FileInputStream(file);
+            try {
+                properties.load(stream);
+            } finally {
+                stream.close();
+            }
+
+            Report report = new Report();
+            report.slides        = Long.parseLong(properties.getProperty("slides", "0"));
+            report.decodes       = Long.parseLong(properties.getProperty("decodes", "0"));
+            report.elapsedMillis = Long.parseLong(properties.getProperty("elapsedMillis", "0"));
+            report.throughput    = Double.parseDouble(properties.getProperty("throughput", "0"));
+            report.p50Latency    = Double.parseDouble(properties.getProperty("p50Latency", "0"));
+            report.p95Latency    = Double.parseDouble(properties.getProperty("p95Latency", "0"));
+            report.p99Latency    = Double.parseDouble(properties.getProperty("p99Latency", "0"));
+            report.peakHeapBytes = Long.parseLong(properties.getProperty("peakHeapBytes", "0"));
+            report.scans         = Long.parseLong(properties.getProperty("scans", "0"));
+            report.leakedBitmaps = Integer.parseInt(properties.getProperty("leakedBitmaps", "0"));
+            report.stalls        = Integer.parseInt(properties.getProperty("stalls", "0"));
+            return report;
+        }
+
+        @Override
+        public String toString() {
+            return slides + " slides, " + decodes + " decodes in " + elapsedMillis + "ms"
+                    + ", throughput " + String.format("%.1f", throughput) + "/s"
+                    + ", latency p50/p95/p99 " + String.format("%.1f/%.1f/%.1f", p50Latency, p95Latency, p99Latency) + "ms"
+                    + ", peak heap " + (peakHeapBytes >> 10) + "KiB"
+                    + ", scans " + scans
+                    + ", leaked " + leakedBitmaps
+                    + ", stalls " + stalls;
+        }
+    }
+
+    private final Context      mContext;
+    private final Config       mConfig;
+    private final Random       mRandom;
+    private final List<String> mIndex       = new ArrayList<>();
+    private       int          mNextImageId = 0;
+
+    public SoakHarness(Context context, Config config) {
+        mContext = context;
+        mConfig  = config == null ? new Config() : config;
+        mRandom  = new Random(mConfig.seed);
+    }
+
+    /**
+     * Run once and fail if it regressed against the baseline stored in
+     * {@code baselineFile}. The first run, with no baseline yet, stores one.
+     */
+    public Report runAndCheck(File baselineFile, float tolerance) throws IOException {
+        Report report = run();
+        if (!baselineFile.exists()) {
+            File baselineDir = baselineFile.getAbsoluteFile().getParentFile();
+            if (baselineDir != null && !baselineDir.isDirectory() && !baselineDir.mkdirs()) {
+                throw new IOException("Can't create " + baselineDir);
+            }
+            report.store(baselineFile);
+            return report;
+        }
+
+        List<String> regressions = report.findRegressions(Report.load(baselineFile), tolerance);
+        if (!regressions.isEmpty()) {
+            throw new AssertionError(TAG + " regressed: " + regressions + " (" + report + ")");
+        }
+        return report;
+    }
+
+    public Report run() {
+        Config        config    = mConfig;
+        MetricsSink   metrics   = new MetricsSink();
+        DecodeService service   = new DecodeService(config.workerCount, config.cacheBytes, new SyntheticDecoderFactory(config.failureRate));
+        SlidingImage  view      = new SlidingImage(mContext);
+        Playlist      playlist  = new Playlist(Playlist.Order.Shuffle, config.seed);
+        Report        report    = new Report();
+        boolean       wasTraced = Tracer.isEnabled();
+
+        synchronized (mIndex) {
+            mIndex.clear();
+            for (int i = 0; i < config.imageCount; i++) {
+                mIndex.add(newSyntheticPath());
+            }
+        }
+
+        Tracer.setSink(metrics);
+        Tracer.setEnabled(true);
+        BitmapLoader         loader        = null;
+        SyntheticImageLoader contentLoader = null;
+        try {
+            Canvas canvas = resize(view, null);
+            contentLoader = startContentLoader(playlist, report);
+            loader = new BitmapLoader(mContext, service);
+            loader.start();
+            view.setDuration(config.transitionMillis);
+            view.setPrerender(config.prerender, config.prerenderBudget);
+            view.setBitmapLoader(loader);
+
+            long startTime = System.nanoTime();
+            for (int slide = 0; slide < config.slideCount; slide++) {
+                if (mRandom.nextFloat() < config.resizeRate) {
+                    canvas = resize(view, canvas);
+                }
+                if (mRandom.nextFloat() < config.terminateRate) {
+                    loader.terminate();
+                    loader = new BitmapLoader(mContext, service);
+                    loader.start();
+                    view.setBitmapLoader(loader);
+                    stopContentLoader(contentLoader, report);
+                    contentLoader = startContentLoader(playlist, report);
+                }
+                if (mRandom.nextFloat() < config.rescanRate) {
+                    rescan(contentLoader, report);
+                }
+
+                SystemClock.sleep(config.transitionMillis);
+                view.setNextImageBitmap(playlist.next());
+                view.setUpcomingImages(playlist.peek(config.prefetchCount));
+                view.draw(canvas);
+                report.peakHeapBytes = Math.max(report.peakHeapBytes, usedHeap());
+
+                if (!waitForBacklog(view, canvas, metrics, config.maxPending, DRAIN_TIMEOUT)) {
+                    report.stalls++;
+                }
+                report.slides++;
+            }
+            if (!waitForBacklog(view, canvas, metrics, 0, DRAIN_TIMEOUT)) {
+                report.stalls++;
+            }
+            report.elapsedMillis = (System.nanoTime() - startTime) / 1000000;
+        } finally {
+            view.setBitmapLoader(null);
+            if (loader != null) {
+                loader.terminate();
+            }
+            if (contentLoader != null) {
+                stopContentLoader(contentLoader, report);
+            }
+            Tracer.setEnabled(wasTraced);
+            Tracer.setSink(null);
+        }
+
+        double[] latencies = metrics.getLatencies();
+        report.decodes       = latencies.length;
+        report.throughput    = report.elapsedMillis == 0 ? 0 : report.decodes * 1000.0 / report.elapsedMillis;
+        report.p50Latency    = percentile(latencies, 0.50);
+        report.p95Latency    = percentile(latencies, 0.95);
+        report.p99Latency    = percentile(latencies, 0.99);
+        report.leakedBitmaps = waitForReleases(service, DRAIN_TIMEOUT);
+        return report;
+    }
+
+    private Canvas resize(SlidingImage view, Canvas canvas) {
+        int width  = mConfig.minViewSize + mRandom.nextInt(mConfig.maxViewSize - mConfig.minViewSize + 1);
+        int height = mConfig.minViewSize + mRandom.nextInt(mConfig.maxViewSize - mConfig.minViewSize + 1);
+        view.layout(0, 0, width, height);
+        return new Canvas(Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888));
+    }
+
+    /**
+     * Start a content loader and wait for its first scan, which fills the playlist
+     */
+    private SyntheticImageLoader startContentLoader(Playlist playlist, Report report) {
+        SyntheticImageLoader contentLoader = new SyntheticImageLoader(playlist);
+        contentLoader.start();
+        if (!contentLoader.waitForScans(1, DRAIN_TIMEOUT)) {
+            report.stalls++;
+        }
+        report.scans += contentLoader.getScanCount();
+        return contentLoader;
+    }
+
+    private void stopContentLoader(SyntheticImageLoader contentLoader, Report report) {
+        contentLoader.stop();
+        if (!contentLoader.join(DRAIN_TIMEOUT)) {
+            report.stalls++;
+        }
+    }
+
+    /**
+     * New photos arrive at the head of the index, a few old ones are deleted,
+     * then the content loader is told and rescans
+     */
+    private void rescan(SyntheticImageLoader contentLoader, Report report) {
+        int scanCount = contentLoader.getScanCount();
+        synchronized (mIndex) {
+            int addCount    = mRandom.nextInt(16);
+            int deleteCount = Math.min(mRandom.nextInt(16), mIndex.size() / 2);
+            for (int i = 0; i < deleteCount; i++) {
+                mIndex.remove(mRandom.nextInt(mIndex.size()));
+            }
+            for (int i = 0; i < addCount; i++) {
+                mIndex.add(0, newSyntheticPath());
+            }
+        }
+
+        contentLoader.notifyDirty();
+        if (!contentLoader.waitForScans(scanCount + 1, DRAIN_TIMEOUT)) {
+            report.stalls++;
+        }
+        report.scans += contentLoader.getScanCount() - scanCount;
+    }
+
+    private boolean waitForBacklog(SlidingImage view, Canvas canvas, MetricsSink metrics, int maxPending, long timeout) {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (metrics.getPendingCount() > maxPending) {
+            if (System.currentTimeMillis() > deadline) {
+                return false;
+            }
+            view.draw(canvas);
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Slides being pre-rendered are released by the prerender thread once it is done
+     * @return how many bitmaps are still referenced after {@code timeout}
+     */
+    private static int waitForReleases(DecodeService service, long timeout) {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (service.getReferencedCount() > 0 && System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+        return service.getReferencedCount();
+    }
+
+    private String newSyntheticPath() {
+        int range  = mConfig.maxImageSize - mConfig.minImageSize + 1;
+        int width  = mConfig.minImageSize + mRandom.nextInt(range);
+        int height = mConfig.minImageSize + mRandom.nextInt(range);
+        return SYNTHETIC_SCHEME + (mNextImageId++) + ":" + width + "x" + height;
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static double percentile(double[] sorted, double fraction) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(fraction * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+
+    /**
+     * The real scan loop of {@link ImageLoader} over the synthetic index,
+     * on a thread of its own instead of the AsyncTask executor
+     */
+    private class SyntheticImageLoader extends ImageLoader {
+        private final Thread mThread;
+        private       int    mScanCount = 0;
+
+        SyntheticImageLoader(final Playlist playlist) {
+            super(mContext);
+            setOnLoadCompletedListener(new OnLoadCompletedListener() {
+                @Override
+                public void OnLoadCompleted(List<String> imagePaths) {
+                    playlist.update(imagePaths);
+                    synchronized (SyntheticImageLoader.this) {
+                        mScanCount++;
+                        SyntheticImageLoader.this.notifyAll();
+                    }
+                }
+            });
+            mThread = new Thread(TAG + "-ImageLoader") {
+                @Override
+                public void run() {
+                    doInBackground();
+                }
+            };
+        }
+
+        @Override
+        public void start() {
+            mThread.start();
+        }
+
+        @Override
+        protected List<String> queryMediaProvider() {
+            synchronized (mIndex) {
+                return new ArrayList<>(mIndex);
+            }
+        }
+
+        synchronized int getScanCount() {
+            return mScanCount;
+        }
+
+        synchronized boolean waitForScans(int scanCount, long timeout) {
+            long deadline = System.currentTimeMillis() + timeout;
+            while (mScanCount < scanCount) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                try {
+                    wait(remaining);
+                } catch (InterruptedException e) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        boolean join(long timeout) {
+            try {
+                mThread.join(timeout);
+            } catch (InterruptedException e) {
+                return false;
+            }
+            return !mThread.isAlive();
+        }
+    }
+
+    /**
+     * Decodes "synthetic:id:WxH" paths into blank bitmaps of the size the
+     * real decoder would produce, failing for a share of the images
+     */
+    private static class SyntheticDecoderFactory implements DecodeService.DecoderFactory {
+        private final float mFailureRate;
+
+        SyntheticDecoderFactory(float failureRate) {
+            mFailureRate = failureRate;
+        }
+
+        @Override
+        public DecodeService.Decoder newDecoder() {
+            return new DecodeService.Decoder() {
+                @Override
+                public Bitmap decode(DecodeService.Key key) {
+                    String[] parts  = key.path.substring(SYNTHETIC_SCHEME.length()).split("[:x]");
+                    int      id     = Integer.parseInt(parts[0]);
+                    float    width  = Integer.parseInt(parts[1]);
+                    float    height = Integer.parseInt(parts[2]);
+                    if (new Random(id).nextFloat() < mFailureRate) {
+                        return null;
+                    }
+                    if (key.width == 0 || key.height == 0) {
+                        return Bitmap.createBitmap((int) width, (int) height, Bitmap.Config.ARGB_8888);
+                    }
+
+                    float viewRatio = (float) key.width / (float) key.height;
+                    float cropWidth;
+                    float cropHeight;
+                    int   sampleSize;
+                    if (width / height > viewRatio) {
+                        cropWidth  = height * viewRatio;
+                        cropHeight = height;
+                        sampleSize = Math.round(height / key.height);
+                    } else {
+                        cropWidth  = width;
+                        cropHeight = width / viewRatio;
+                        sampleSize = Math.round(width / key.width);
+                    }
+                    sampleSize = sampleSize < 1 ? 1 : sampleSize;
+                    return Bitmap.createBitmap(
+                            Math.max(1, (int) (cropWidth / sampleSize)),
+                            Math.max(1, (int) (cropHeight / sampleSize)),
+                            Bitmap.Config.ARGB_8888);
+                }
+
+                @Override
+                public void close() {
+                    // Nothing opened
+                }
+            };
+        }
+    }
+
+    /**
+     * Turns the slide trace into decode latencies and the decode backlog
+     */
+    private static class MetricsSink implements Tracer.Sink {
+        private final Map<Integer, Long> mQueuedTimes = new HashMap<>();
+        private       double[]           mLatencies   = new double[1024];
+        private       int                mCount       = 0;
+
+        @Override
+        public void beginSection(String name) {
+            // Only slide slices are measured
+        }
+
+        @Override
+        public void endSection() {
+            // Only slide slices are measured
+        }
+
+        @Override
+        public synchronized void beginAsyncSection(String name, int cookie) {
+            if (Tracer.Stage.Queued.getTrackName().equals(name)) {
+                mQueuedTimes.put(cookie, System.nanoTime());
+            } else if (Tracer.Stage.Decoded.getTrackName().equals(name)) {
+                Long queuedTime = mQueuedTimes.remove(cookie);
+                if (queuedTime != null) {
+                    if (mCount == mLatencies.length) {
+                        mLatencies = Arrays.copyOf(mLatencies, mCount * 2);
+                    }
+                    mLatencies[mCount++] = (System.nanoTime() - queuedTime) / 1000000.0;
+                }
+            }
+        }
+
+        @Override
+        public synchronized void endAsyncSection(String name, int cookie) {
+            if (Tracer.SLIDE_TRACK.equals(name)) {
+                // Dropped before it was decoded
+                mQueuedTimes.remove(cookie);
+            }
+        }
+
+        synchronized int getPendingCount() {
+            return mQueuedTimes.size();
+        }
+
+        synchronized double[] getLatencies() {
+            double[] latencies = Arrays.copyOf(mLatencies, mCount);
+            Arrays.sort(latencies);
+            return latencies;
+        }
+    }
+}
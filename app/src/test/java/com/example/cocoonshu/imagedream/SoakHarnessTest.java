@@ -0,0 +1,65 @@
+package com.example.cocoonshu.imagedream;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs {@link SoakHarness} with and without pre-rendering, failing on leaked
+ * bitmaps, stalls or a content loader that never rescanned.
+ * <p>
+ * Timings and heap depend on the machine, so their regression check is
+ * opt-in: run with -Dsoak.baselineDir=DIR to check against the baselines in
+ * DIR, relative to the app module. The first run on a machine stores them,
+ * delete them to record new ones.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class SoakHarnessTest {
+
+    private static final String BASELINE_DIR_PROPERTY = "soak.baselineDir";
+    private static final float  TOLERANCE             = 0.5f;
+
+    @Test
+    public void soakDoesntLeakOrStall() throws IOException {
+        soak(newConfig(), "soak-baseline.properties");
+    }
+
+    @Test
+    public void prerenderSoakDoesntLeakOrStall() throws IOException {
+        SoakHarness.Config config = newConfig();
+        config.prerender = true;
+        soak(config, "soak-prerender-baseline.properties");
+    }
+
+    private static void soak(SoakHarness.Config config, String baselineName) throws IOException {
+        SoakHarness        harness     = new SoakHarness(RuntimeEnvironment.application, config);
+        String             baselineDir = System.getProperty(BASELINE_DIR_PROPERTY, "");
+        SoakHarness.Report report      = baselineDir.isEmpty()
+                ? harness.run()
+                : harness.runAndCheck(new File(baselineDir, baselineName), TOLERANCE);
+
+        assertEquals(report.toString(), 0, report.leakedBitmaps);
+        assertEquals(report.toString(), 0, report.stalls);
+        assertTrue(report.toString(), report.scans > 1);
+    }
+
+    private static SoakHarness.Config newConfig() {
+        SoakHarness.Config config = new SoakHarness.Config();
+        config.slideCount    = 2000;
+        config.maxImageSize  = 1024;
+        config.maxViewSize   = 800;
+        config.resizeRate    = 0.05f;
+        config.terminateRate = 0.02f;
+        config.rescanRate    = 0.02f;
+        return config;
+    }
+}